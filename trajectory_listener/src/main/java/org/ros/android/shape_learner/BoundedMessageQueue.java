@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import java.util.ArrayDeque;
+
+/**
+ * Queue of incoming messages waiting to be processed, with a fixed capacity and a policy for what to do
+ * when a message arrives while it is full.
+ */
+public class BoundedMessageQueue<T> {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,       //discard the message which has been waiting longest
+        DROP_NEWEST,       //discard the incoming message
+        MERGE_INTO_LATEST, //combine the incoming message with the most recently queued one (replaces it if there is no merger, drops the oldest if they can't be combined)
+        BLOCK              //make the caller wait until there is space
+    }
+
+    /**
+     * Combines two messages into one.
+     */
+    public interface Merger<T> {
+        /**
+         * @param pending message already in the queue
+         * @param incoming message which arrived after it
+         * @return a message with the content of both, or null if they can't be combined (the oldest waiting message is
+         *         then dropped instead, as with DROP_OLDEST)
+         */
+        T merge(T pending, T incoming);
+    }
+
+    private final ArrayDeque<T> queue = new ArrayDeque<T>();
+    private int capacity;
+    private OverflowPolicy policy;
+    private Merger<T> merger;
+    private long droppedCount = 0;
+    private long mergedCount = 0;
+    private long clearCount = 0;
+
+    public BoundedMessageQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(capacity, 1);
+        this.policy = policy;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        notifyAll();
+    }
+    public synchronized void setPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+        notifyAll();
+    }
+    public synchronized void setMerger(Merger<T> merger) { this.merger = merger; }
+
+    /**
+     * Add a message, applying the overflow policy if the queue is full.
+     *
+     * @throws InterruptedException if interrupted while blocked waiting for space
+     */
+    public synchronized void put(T message) throws InterruptedException {
+        while (queue.size() >= capacity) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    queue.pollFirst();
+                    droppedCount++;
+                    break;
+                case DROP_NEWEST:
+                    droppedCount++;
+                    return;
+                case MERGE_INTO_LATEST:
+                    T pending = queue.peekLast();
+                    T merged = merger != null ? merger.merge(pending, message) : message;
+                    if (merged == null) {
+                        queue.pollFirst();
+                        droppedCount++;
+                        break;
+                    }
+                    queue.pollLast();
+                    queue.addLast(merged);
+                    mergedCount++;
+                    notifyAll();
+                    return;
+                case BLOCK:
+                    wait();
+                    break;
+            }
+        }
+        queue.addLast(message);
+        notifyAll();
+    }
+
+    /**
+     * Remove the oldest message, waiting for one to arrive if the queue is empty.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (queue.isEmpty()) {
+            wait();
+        }
+        T message = queue.pollFirst();
+        notifyAll(); //there is space for blocked producers now
+        return message;
+    }
+
+    /**
+     * Discard every waiting message, and count the clear (see getClearCount).
+     */
+    public synchronized void clear() {
+        queue.clear();
+        clearCount++;
+        notifyAll();
+    }
+
+    /** Number of messages waiting. */
+    public synchronized int size() { return queue.size(); }
+
+    /** Number of messages discarded because the queue was full. */
+    public synchronized long getDroppedCount() { return droppedCount; }
+
+    /** Number of messages combined with (or replacing) a queued message because the queue was full. */
+    public synchronized long getMergedCount() { return mergedCount; }
+
+    /**
+     * Number of times the queue has been cleared. Read it while holding the queue's lock together with take() to know
+     * whether a message was taken before or after a clear.
+     */
+    public synchronized long getClearCount() { return clearCount; }
+}
@@ -18,49 +18,79 @@ package org.ros.android.shape_learner;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.drawable.AnimationDrawable;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LayerDrawable;
-import android.graphics.drawable.ShapeDrawable;
-import android.graphics.drawable.shapes.PathShape;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.widget.ImageView;
 import org.ros.android.MessageCallable;
-import org.ros.message.Duration;
 import org.ros.message.MessageListener;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.ConnectedNode;
 import org.ros.node.Node;
 import org.ros.node.NodeMain;
-import org.ros.node.topic.Publisher;
 import org.ros.node.topic.Subscriber;
 
 import java.lang.String;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import nav_msgs.Path;
 import std_msgs.*;
 
 /**
  * Displays incoming messages with a bitmap or other Drawable.
+ *
+ * Drawables are drawn as layers on top of each other. Trajectories are baked into a single
+ * backing bitmap once they have finished playing, so only in-progress ones are kept alive.
  * 
  * @author ethan.rublee@gmail.com (Ethan Rublee)
  * @author damonkohler@google.com (Damon Kohler). Modified by Deanna Hood.
  */
-public class DisplayManager<T> extends ImageView implements NodeMain {
+public class DisplayManager<T> extends ImageView implements NodeMain, DisplayTopics.PlaybackControl {
     private static final java.lang.String TAG = "DisplayManager";
-    private static final boolean SHOW_SHAPE_STRAIGHT_AWAY = false; //if using a simulated time, this should be true, so don't wait until the requested start time of shape
+    private static final int DEFAULT_INBOUND_QUEUE_CAPACITY = 32;
+    private static final long DEFAULT_LAYER_BYTES = 1024; //assumed size of drawables whose memory use can't be estimated
   private String topicName;
   private String messageType;
   private MessageCallable<Bitmap, T> bitmapCallable;
   private MessageCallable<Drawable, T> drawableCallable;
-    private AnimationDrawable drawable;
-    private String clearScreenTopicName;
+    private MessageCallable<TrajectoryBuffer, T> chunkCallable;
+    private Drawable drawable; //most recently shown drawable
+    private final ArrayList<Drawable> liveLayers = new ArrayList<Drawable>(); //drawables which may still change, drawn over the flattened bitmap in order
+    private Bitmap flattenedBitmap; //finished trajectories, drawn once and then released
+    private Canvas flattenedCanvas;
+    private final HashMap<Drawable, Long> layerUpdateTimes = new HashMap<Drawable, Long>(); //last time each live layer changed (System.nanoTime())
+    private long memoryBudget_bytes = -1; //maximum bytes to hold before evicting live layers (negative for no limit)
+    private EvictionPolicy evictionPolicy = EvictionPolicy.OLDEST_FIRST;
+
+    /**
+     * Which live layer to evict first when over the memory budget.
+     */
+    public enum EvictionPolicy {
+        OLDEST_FIRST,          //the layer which was shown first
+        LEAST_RECENTLY_UPDATED //the layer which has gone longest without changing
+    }
+    private final DisplayTopics topics = new DisplayTopics();
     private MessageCallable<Integer, Integer> clearScreenCallable;
-    private Publisher<std_msgs.String> finishedShapePublisher;
-    private String finishedShapeTopicName;
-    private Publisher<std_msgs.Empty> clearWatchdogPublisher;
-    private String clearWatchdogTopicName;
+    private volatile double playbackRate = 1.0; //rate at which trajectories are played (times faster than their own timing)
+    private final BoundedMessageQueue<T> inboundQueue = new BoundedMessageQueue<T>(DEFAULT_INBOUND_QUEUE_CAPACITY, BoundedMessageQueue.OverflowPolicy.DROP_OLDEST); //messages waiting to be prepared, in order of arrival
+    private Thread preparationThread; //converts messages to drawables off the UI thread
+    private volatile boolean streamingEnabled = false;
+    //state of the trajectory being streamed, only used on the preparation thread
+    private TrajectoryDrawable streamDrawable;
+    private Time streamStamp;
+    private int streamLastSeq;
+    private long streamLastPointTime_nsecs;
+    private Time clearedStreamStamp; //stamp of a streamed trajectory which was cleared, whose remaining chunks are dropped
+    private volatile boolean streamCleared = false; //set when the screen is cleared, so the preparation thread ends the stream
+    private volatile long streamGapCount = 0;
+    private volatile long streamOutOfOrderCount = 0;
+    private final HashMap<Drawable, std_msgs.Header> trajectoryHeaders = new HashMap<Drawable, std_msgs.Header>(); //header of the message each playing trajectory came from
 
     public DisplayManager(Context context) {
     super(context);
@@ -76,12 +106,31 @@ public class DisplayManager<T> extends ImageView implements NodeMain {
 
   public void setTopicName(String topicName) { this.topicName = topicName; }
     public void setClearScreenTopicName(String topicName) {
-        this.clearScreenTopicName = topicName;
+        topics.setClearScreenTopicName(topicName);
     }
-    public void setFinishedShapeTopicName(String topicName) { this.finishedShapeTopicName = topicName;
+    public void setFinishedShapeTopicName(String topicName) { topics.setFinishedShapeTopicName(topicName);
+    }
+    /**
+     * Set the topic on which the identity and timing of each finished trajectory is published (see
+     * DisplayTopics.describeFinishedShape), alongside "true" on the finished shape topic.
+     */
+    public void setFinishedShapeTimingTopicName(String topicName) {
+        topics.setFinishedShapeTimingTopicName(topicName);
     }
     public void setClearWatchdogTopicName(String topicName) {
-        this.clearWatchdogTopicName = topicName;
+        topics.setClearWatchdogTopicName(topicName);
+    }
+    /**
+     * Set the topic on which the delay between each trajectory's requested and actual start is published.
+     */
+    public void setStartSkewTopicName(String topicName) {
+        topics.setStartSkewTopicName(topicName);
+    }
+    /**
+     * Set the topic on which playback commands for the active trajectory are received (see applyPlaybackCommand).
+     */
+    public void setPlaybackControlTopicName(String topicName) {
+        topics.setPlaybackControlTopicName(topicName);
     }
   public void setMessageType(String messageType) {
     this.messageType = messageType;
@@ -93,6 +142,99 @@ public class DisplayManager<T> extends ImageView implements NodeMain {
   public void setMessageToDrawableCallable(MessageCallable<Drawable, T> callable) {
         this.drawableCallable = callable;
     }
+    /**
+     * Set the function which converts a further chunk of a streamed trajectory to points in pixel coordinates, to be
+     * appended to the trajectory being displayed (see setStreamingEnabled). It is called on the preparation thread.
+     */
+    public void setStreamedChunkCallable(MessageCallable<TrajectoryBuffer, T> callable) {
+        this.chunkCallable = callable;
+    }
+    /**
+     * Rate at which trajectories are played (times faster than their own timing).
+     */
+    public double getPlaybackRate() { return playbackRate; }
+
+    /**
+     * Set the rate at which the active and subsequent trajectories are played (must be called on the UI thread).
+     * Must be finite and greater than zero.
+     */
+    public void setPlaybackRate(double playbackRate) {
+        this.playbackRate = playbackRate;
+        TrajectoryPlayer activePlayer = getActivePlayer();
+        if(activePlayer != null){
+            activePlayer.setRate(playbackRate);
+        }
+    }
+
+    /**
+     * Player of the most recently shown trajectory, if it is still playing.
+     */
+    public TrajectoryPlayer getActivePlayer() {
+        if(drawable instanceof TrajectoryDrawable && ((TrajectoryDrawable) drawable).isRunning()){
+            return ((TrajectoryDrawable) drawable).getPlayer();
+        }
+        return null;
+    }
+
+    /**
+     * Control playback of the active trajectory (must be called on the UI thread). Commands are
+     * "rate &lt;r&gt;", "pause", "resume" and "seek &lt;t&gt;" (see DisplayTopics.applyPlaybackCommand).
+     */
+    public void applyPlaybackCommand(String command){
+        DisplayTopics.applyPlaybackCommand(command, this);
+    }
+
+    /**
+     * Time between refreshes of the display this view is shown on.
+     */
+    public long getFrameInterval_nsecs() {
+        return DisplayTopics.getFrameInterval_nsecs(getContext());
+    }
+
+    /**
+     * Enable streaming mode, in which a long trajectory can be sent as consecutive chunks: paths sharing a header
+     * stamp (and with consecutive header seqs) are appended to the trajectory being displayed as they arrive, and an
+     * empty path marks the end of the trajectory. The trajectory only finishes once it has ended and played all its
+     * points, so the stream must be ended (or a new trajectory sent) for its finished message to be published.
+     * Chunks are converted with the streamed chunk callable, and any arriving after the screen is cleared are dropped.
+     */
+    public void setStreamingEnabled(boolean streamingEnabled) { this.streamingEnabled = streamingEnabled; }
+
+    /** Number of times chunks of a streamed trajectory were missing (judged by header seq). */
+    public long getStreamGapCount() { return streamGapCount; }
+
+    /** Number of chunks of a streamed trajectory dropped because they arrived out of order. */
+    public long getStreamOutOfOrderCount() { return streamOutOfOrderCount; }
+
+    /**
+     * Set how many received messages may wait to be prepared, and what happens to new ones when that many are waiting
+     * (by default, the oldest is dropped). BLOCK holds up the thread messages are received on until there is space.
+     */
+    public void setInboundQueueCapacity(int capacity) { inboundQueue.setCapacity(capacity); }
+    public void setInboundQueuePolicy(BoundedMessageQueue.OverflowPolicy policy) { inboundQueue.setPolicy(policy); }
+
+    /**
+     * Set how two messages are combined when the inbound queue is full and its policy is MERGE_INTO_LATEST.
+     */
+    public void setMessageMerger(BoundedMessageQueue.Merger<T> merger) { inboundQueue.setMerger(merger); }
+
+    /** Number of received messages waiting to be prepared. */
+    public int getInboundQueueDepth() { return inboundQueue.size(); }
+
+    /** Number of received messages discarded because the inbound queue was full. */
+    public long getDroppedMessageCount() { return inboundQueue.getDroppedCount(); }
+
+    /** Number of received messages merged into another because the inbound queue was full. */
+    public long getMergedMessageCount() { return inboundQueue.getMergedCount(); }
+
+    /**
+     * Set the maximum number of bytes (flattened bitmap, images and live layers) the display should hold.
+     * When a new layer takes it over budget, older live layers which have finished playing are baked into the flattened
+     * bitmap and released (see enforceMemoryBudget). Negative for no limit.
+     */
+    public void setMemoryBudget_bytes(long memoryBudget_bytes) { this.memoryBudget_bytes = memoryBudget_bytes; }
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) { this.evictionPolicy = evictionPolicy; }
+
     /**
      * Set which function will be called when a clear screen message is received (after clearing DisplayManager's View).
      */
@@ -109,89 +251,57 @@ public class DisplayManager<T> extends ImageView implements NodeMain {
     subscriber.addMessageListener(new MessageListener<T>() {
       @Override
       public void onNewMessage(final T message) {
-        if (bitmapCallable != null) {
-            post(new Runnable() {
-              @Override
-              public void run() {
-                setImageBitmap(bitmapCallable.call(message));
-              }
-            });
-        } else if (drawableCallable != null) {
-
-            if(message instanceof nav_msgs.Path){ // this does not belong in this class
-                if(((Path) message).getPoses().size()!=0){//prevent drawing the stop bit
-
-            post(new Runnable() {
-                @Override
-                public void run() {
-                    Log.e(TAG, "got a message at " + connectedNode.getCurrentTime().toString());
-
-                    drawable = (AnimationDrawableWithEndCallback)drawableCallable.call(message);
-
-                    LayerDrawable layerDrawable;
-                    Drawable currentDrawable = getDrawable();
-                    if(currentDrawable == null){ //first drawable
-                        setImageDrawable(drawable);
-                    }else{
-                        if(currentDrawable instanceof LayerDrawable){ //already a layerDrawable
-                            //add new layer
-                            int numExistingLayers = ((LayerDrawable) currentDrawable).getNumberOfLayers();
-                            Drawable[] layers = new Drawable[numExistingLayers+1];
-                            for(int i = 0; i<numExistingLayers; i++){
-                                layers[i] = ((LayerDrawable) currentDrawable).getDrawable(i);
-                            }
-                            layers[numExistingLayers] = drawable;
-                            layerDrawable = new LayerDrawable(layers);
-                            setImageDrawable(layerDrawable);
-                        }
-                        else{
-                            //turn into layerDrawable
-                            Drawable[] layers = new Drawable[2];
-                            layers[0] = currentDrawable;
-                            layers[1] = drawable;
-                            layerDrawable = new LayerDrawable(layers);
-                            setImageDrawable(layerDrawable);
-                        }
-                    }
-
-
-                    if(message instanceof nav_msgs.Path){ // this does not belong in this class
-                        Duration delay = ((Path) message).getHeader().getStamp().subtract(connectedNode.getCurrentTime());
-                        if(!SHOW_SHAPE_STRAIGHT_AWAY){
-                            try{Thread.sleep(Math.round(delay.totalNsecs() / 1000000.0));}
-                            catch(InterruptedException e){
-                                Log.e(TAG, "InterruptedException: " + e.getMessage());
-                            }
-                            catch(IllegalArgumentException e){
-                                Log.e(TAG, "IllegalArgumentException: " + e.getMessage());
-                            }
-                        }
-                        Log.e(TAG, "executing message at " + connectedNode.getCurrentTime().toString());
-                    }
-                    drawable.start();
-                }
-            });
-
-                }}
+        if (bitmapCallable == null && drawableCallable == null) {
+            return;
+        }
+        if (bitmapCallable == null && message instanceof nav_msgs.Path && !streamingEnabled){ // this does not belong in this class
+            if(((Path) message).getPoses().size()==0){//prevent drawing the stop bit (when streaming, it ends the stream)
+                return;
+            }
+        }
+        try{
+            inboundQueue.put(message);
+        }catch(InterruptedException e){
+            Log.e(TAG, "Interrupted while waiting for space in the inbound queue");
+            Thread.currentThread().interrupt();
         }
-        postInvalidate();
       }
     });
+    //convert queued messages on the preparation thread so that only the swap happens on the UI thread
+    preparationThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+            try{
+                while(!Thread.currentThread().isInterrupted()){
+                    T message;
+                    long clearGeneration;
+                    synchronized(inboundQueue){ //so that a clear can't come between taking the message and noting the generation
+                        message = inboundQueue.take();
+                        clearGeneration = inboundQueue.getClearCount();
+                    }
+                    Log.i(TAG, "Inbound queue: " + inboundQueue.size() + " waiting, " + inboundQueue.getDroppedCount() + " dropped, " + inboundQueue.getMergedCount() + " merged");
+                    prepareMessage(message, clearGeneration, connectedNode);
+                }
+            }catch(InterruptedException e){
+                //shutting down
+            }
+        }
+    }, "DisplayManager preparation");
+    preparationThread.start();
 
 
-      Subscriber<Empty> clearScreenSubscriber = connectedNode.newSubscriber(clearScreenTopicName, Empty._TYPE);
+      Subscriber<Empty> clearScreenSubscriber = connectedNode.newSubscriber(topics.getClearScreenTopicName(), Empty._TYPE);
       clearScreenSubscriber.addMessageListener(new MessageListener<Empty>() {
           @Override
           public void onNewMessage(final Empty message) {
+              //messages received before the clear aren't shown, whether still waiting or being prepared (see showDrawable)
+              inboundQueue.clear();
+              streamCleared = true;
               post(new Runnable() {
                   @Override
                   public void run() {
                       Log.e(TAG,"Got clear screen request.");
-                      ShapeDrawable blankShapeDrawable = new ShapeDrawable(new PathShape(new android.graphics.Path(), 0, 0));
-                      blankShapeDrawable.setIntrinsicHeight(getHeight());
-                      blankShapeDrawable.setIntrinsicWidth(getWidth());
-                      blankShapeDrawable.setBounds(0, 0, getWidth(), getHeight());
-                      setImageDrawable(blankShapeDrawable);
+                      clearLayers();
                   }
               });
               if (clearScreenCallable != null) {
@@ -199,26 +309,364 @@ public class DisplayManager<T> extends ImageView implements NodeMain {
               }
           }
       });
-      this.finishedShapePublisher =
-              connectedNode.newPublisher(finishedShapeTopicName, std_msgs.String._TYPE);
-      this.clearWatchdogPublisher =
-              connectedNode.newPublisher(clearWatchdogTopicName, std_msgs.Empty._TYPE);
+      if (topics.getPlaybackControlTopicName() != null) {
+          Subscriber<std_msgs.String> playbackControlSubscriber = connectedNode.newSubscriber(topics.getPlaybackControlTopicName(), std_msgs.String._TYPE);
+          playbackControlSubscriber.addMessageListener(new MessageListener<std_msgs.String>() {
+              @Override
+              public void onNewMessage(final std_msgs.String message) {
+                  post(new Runnable() {
+                      @Override
+                      public void run() {
+                          applyPlaybackCommand(message.getData());
+                      }
+                  });
+              }
+          });
+      }
+      topics.start(connectedNode);
   }
+    /**
+     * Convert a message to a bitmap or drawable (on the preparation thread) and post it to be shown.
+     *
+     * @param clearGeneration number of times the screen had been cleared when the message was taken from the queue
+     */
+    private void prepareMessage(final T message, final long clearGeneration, final ConnectedNode connectedNode){
+        if (bitmapCallable != null) {
+            final Bitmap bitmap = bitmapCallable.call(message);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if(clearGeneration == inboundQueue.getClearCount()){ //not cleared since the message was received
+                        setImageBitmap(bitmap);
+                    }
+                }
+            });
+        } else if (drawableCallable != null) {
+            Log.e(TAG, "preparing a message at " + connectedNode.getCurrentTime().toString());
+            if(streamingEnabled && message instanceof nav_msgs.Path){ // this does not belong in this class
+                if(prepareStreamedPath(message)){
+                    return; //chunk of the trajectory already being displayed
+                }
+            }
+            final Drawable preparedDrawable = drawableCallable.call(message);
+            if(streamingEnabled && preparedDrawable instanceof TrajectoryDrawable){
+                openStream((TrajectoryDrawable) preparedDrawable, (Path) message);
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    showDrawable(preparedDrawable, message, clearGeneration);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handle a path received in streaming mode (on the preparation thread). A path with the same header stamp as the
+     * trajectory being streamed is a further chunk of it, and is appended to it; an empty path ends the stream.
+     *
+     * @return true if the path has been dealt with, false if it starts a new trajectory
+     */
+    private boolean prepareStreamedPath(T message){
+        Path path = (Path) message;
+        if(streamCleared){
+            streamCleared = false;
+            if(streamDrawable != null){
+                clearedStreamStamp = streamStamp; //the trajectory has been removed, so there is nothing to add its chunks to
+                streamDrawable = null;
+                streamStamp = null;
+            }
+        }
+        if(path.getPoses().isEmpty()){
+            closeStream();
+            clearedStreamStamp = null;
+            return true;
+        }
+        if(path.getHeader().getStamp().equals(clearedStreamStamp)){
+            Log.e(TAG, "Dropping chunk " + path.getHeader().getSeq() + " of a streamed trajectory which has been cleared");
+            return true;
+        }
+        clearedStreamStamp = null;
+        if(streamDrawable == null || !path.getHeader().getStamp().equals(streamStamp)){
+            closeStream();
+            return false;
+        }
+        int seq = path.getHeader().getSeq();
+        long firstPointTime_nsecs = path.getPoses().get(0).getHeader().getStamp().totalNsecs();
+        if(seq <= streamLastSeq || firstPointTime_nsecs < streamLastPointTime_nsecs){
+            streamOutOfOrderCount++;
+            Log.e(TAG, "Dropping out-of-order chunk " + seq + " of streamed trajectory (last chunk was " + streamLastSeq + ")");
+            return true;
+        }
+        if(seq != streamLastSeq + 1){
+            streamGapCount++;
+            Log.e(TAG, "Missing chunks " + (streamLastSeq + 1) + " to " + (seq - 1) + " of streamed trajectory");
+        }
+        streamLastSeq = seq;
+        streamLastPointTime_nsecs = path.getPoses().get(path.getPoses().size() - 1).getHeader().getStamp().totalNsecs();
+
+        if(chunkCallable == null){
+            Log.e(TAG, "No streamed chunk callable set: dropping chunk " + seq + " of streamed trajectory");
+            return true;
+        }
+        final TrajectoryDrawable target = streamDrawable;
+        final TrajectoryBuffer chunk = chunkCallable.call(message);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if(liveLayers.contains(target)){ //not cleared since the chunk was prepared
+                    target.append(chunk);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Start streaming into a newly prepared trajectory (on the preparation thread, before it is shown).
+     */
+    private void openStream(TrajectoryDrawable trajectory, Path path){
+        trajectory.setAwaitingMorePoints(true);
+        streamDrawable = trajectory;
+        streamStamp = path.getHeader().getStamp();
+        streamLastSeq = path.getHeader().getSeq();
+        streamLastPointTime_nsecs = path.getPoses().get(path.getPoses().size() - 1).getHeader().getStamp().totalNsecs();
+    }
+
+    /**
+     * Let the trajectory being streamed (if any) finish once it has played the points it has (on the preparation thread).
+     */
+    private void closeStream(){
+        if(streamDrawable != null){
+            final TrajectoryDrawable trajectory = streamDrawable;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    trajectory.setAwaitingMorePoints(false);
+                }
+            });
+        }
+        streamDrawable = null;
+        streamStamp = null;
+    }
+
+    /**
+     * Add a prepared drawable on top of those already displayed and start it (must be called on the UI thread), unless
+     * the screen has been cleared since its message was received, in which case it is dropped.
+     *
+     * @param clearGeneration number of times the screen had been cleared when the message was taken from the queue
+     */
+    private void showDrawable(Drawable preparedDrawable, T message, long clearGeneration){
+        if(clearGeneration != inboundQueue.getClearCount()){
+            Log.e(TAG, "Dropping a drawable whose message was received before the screen was cleared");
+            return;
+        }
+        drawable = preparedDrawable;
+        drawable.setBounds(0, 0, getWidth(), getHeight());
+        drawable.setCallback(this);
+        liveLayers.add(drawable);
+        layerUpdateTimes.put(drawable, System.nanoTime());
+        enforceMemoryBudget();
+        if(drawable instanceof TrajectoryDrawable){
+            if(message instanceof nav_msgs.Path){ // this does not belong in this class
+                trajectoryHeaders.put(drawable, ((Path) message).getHeader());
+            }
+            ((TrajectoryDrawable) drawable).getPlayer().setRate(playbackRate);
+            //once finished, the trajectory no longer changes so it can be baked into the flattened layer
+            ((TrajectoryDrawable) drawable).getPlayer().addListener(new TrajectoryPlayer.Listener() {
+                @Override
+                public void onPlaybackStarted(TrajectoryDrawable trajectory, long requestedStartTime_nsecs, long startFrameTime_nsecs) {
+                    if(requestedStartTime_nsecs >= 0){
+                        topics.publishStartSkew(startFrameTime_nsecs - requestedStartTime_nsecs);
+                    }
+                }
+                @Override
+                public void onPlaybackFinished(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs) {
+                    flattenLayer(trajectory);
+                }
+            });
+        }
+        invalidate();
+
+        //the requested ROS start time is converted to the monotonic clock used for playback, rather than waiting for it here
+        long startTime_nsecs = topics.getRequestedStartTime_nsecs(message);
+        if(drawable instanceof TrajectoryDrawable){
+            ((TrajectoryDrawable) drawable).getPlayer().startAt(startTime_nsecs);
+        }else if(drawable instanceof Animatable){
+            ((Animatable) drawable).start();
+        }
+    }
+
+    /**
+     * Draw a finished layer into the flattened bitmap and stop holding on to it.
+     */
+    private void flattenLayer(Drawable layer){
+        if(!liveLayers.remove(layer)){
+            return; //already cleared
+        }
+        layerUpdateTimes.remove(layer);
+        trajectoryHeaders.remove(layer); //if it finished, the finished message has already been published
+        layer.setCallback(null);
+        if(flattenedCanvas != null){
+            layer.draw(flattenedCanvas);
+        }
+        invalidate();
+    }
+
+    /**
+     * Evict live layers (never the newest) which have stopped changing until the display is within its memory budget.
+     * Layers which are still playing (or waiting to start) are never evicted, as their shape finished messages must
+     * still be published; if only those are left, the display stays over budget until they finish (and are flattened).
+     */
+    private void enforceMemoryBudget(){
+        if(memoryBudget_bytes < 0){
+            return;
+        }
+        long heldBytes = getHeldBytes();
+        while(heldBytes > memoryBudget_bytes && liveLayers.size() > 1){
+            Drawable victim = chooseVictim();
+            if(victim == null){
+                Log.e(TAG, "Over memory budget with only playing layers left: waiting for them to finish");
+                break;
+            }
+            heldBytes -= estimateByteCount(victim);
+            flattenLayer(victim);
+        }
+        Log.i(TAG, "Display holding " + heldBytes + " bytes in " + liveLayers.size() + " live layers");
+    }
+
+    /**
+     * Live layer (other than the newest) which has stopped changing, to evict according to the eviction policy.
+     *
+     * @return the layer, or null if there is none
+     */
+    private Drawable chooseVictim(){
+        Drawable victim = null;
+        for(int i = 0; i < liveLayers.size() - 1; i++){
+            Drawable layer = liveLayers.get(i);
+            if(layer instanceof Animatable && ((Animatable) layer).isRunning()){
+                continue;
+            }
+            if(victim == null){
+                victim = layer;
+                if(evictionPolicy == EvictionPolicy.OLDEST_FIRST){
+                    break;
+                }
+            }else if(layerUpdateTimes.get(layer) < layerUpdateTimes.get(victim)){
+                victim = layer;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Approximate number of bytes currently held by the display: the flattened bitmap, any image set by a
+     * bitmap callable and all live layers.
+     */
+    public long getHeldBytes(){
+        long heldBytes = 0;
+        if(flattenedBitmap != null){
+            heldBytes += flattenedBitmap.getByteCount();
+        }
+        if(getDrawable() != null){
+            heldBytes += estimateByteCount(getDrawable());
+        }
+        for(Drawable layer : liveLayers){
+            heldBytes += estimateByteCount(layer);
+        }
+        return heldBytes;
+    }
+
+    private static long estimateByteCount(Drawable drawable){
+        if(drawable instanceof TrajectoryDrawable){
+            return ((TrajectoryDrawable) drawable).estimateByteCount();
+        }
+        if(drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() != null){
+            return ((BitmapDrawable) drawable).getBitmap().getByteCount();
+        }
+        return DEFAULT_LAYER_BYTES;
+    }
+
+    /**
+     * Remove everything which has been displayed (must be called on the UI thread). Trajectories which are still
+     * playing finish without being drawn (see DisplayTopics.releaseClearedLayers).
+     */
+    private void clearLayers(){
+        DisplayTopics.releaseClearedLayers(liveLayers);
+        liveLayers.clear();
+        layerUpdateTimes.clear();
+        trajectoryHeaders.clear();
+        drawable = null;
+        if(flattenedBitmap != null){
+            flattenedBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        setImageDrawable(null);
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if(w > 0 && h > 0){
+            Bitmap previous = flattenedBitmap;
+            flattenedBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            flattenedCanvas = new Canvas(flattenedBitmap);
+            if(previous != null){
+                flattenedCanvas.drawBitmap(previous, 0, 0, null);
+                previous.recycle();
+            }
+        }
+        for(Drawable layer : liveLayers){
+            layer.setBounds(0, 0, w, h);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas); //image set by a bitmap callable, if any
+        if(flattenedBitmap != null){
+            canvas.drawBitmap(flattenedBitmap, 0, 0, null);
+        }
+        for(Drawable layer : liveLayers){
+            layer.draw(canvas);
+        }
+    }
+
+    @Override
+    public void invalidateDrawable(Drawable who) {
+        if(layerUpdateTimes.containsKey(who)){
+            layerUpdateTimes.put(who, System.nanoTime());
+        }
+        super.invalidateDrawable(who);
+    }
+
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return liveLayers.contains(who) || super.verifyDrawable(who);
+    }
+
   public void publishShapeFinishedMessage(){
-      Log.e(TAG, "Publishing shape finished message.");
-      std_msgs.String message = finishedShapePublisher.newMessage();
-      message.setData(String.valueOf(true));
-      finishedShapePublisher.publish(message);
+      topics.publishShapeFinished(null, null, -1, -1);
   }
 
+    /**
+     * Publish that a trajectory has finished, and its identity and timing (see DisplayTopics.publishShapeFinished).
+     * Must be called on the UI thread, from the trajectory's TrajectoryPlayer.Listener.
+     */
+    public void publishShapeFinishedMessage(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs){
+        topics.publishShapeFinished(trajectoryHeaders.remove(trajectory), trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+    }
+
     public void publishWatchdogClearMessage(){
-        //Log.e(TAG, "Publishing clear watchdog message.");
-        std_msgs.Empty message = clearWatchdogPublisher.newMessage();
-        clearWatchdogPublisher.publish(message);
+        topics.publishWatchdogClear();
     }
 
   @Override
   public void onShutdown(Node node) {
+      if (preparationThread != null) {
+          preparationThread.interrupt();
+      }
+      inboundQueue.clear();
   }
 
   @Override
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.view.Display;
+
+/**
+ * Converts between metres in the 'robot frame' and pixels in the 'tablet frame' of a particular display.
+ *
+ * The robot frame has its origin at the bottom left of the screen with y pointing up, while the tablet frame
+ * has its origin at the top left with y pointing down. The conversion each way is held as a precomputed affine
+ * matrix [a b c; d e f] (x' = a*x + b*y + c, y' = d*x + e*y + f) built from the display's real density.
+ */
+public class DisplayProfile {
+    private static final double METRES_PER_INCH = 0.0254;
+    private final int widthPixels;
+    private final int heightPixels;
+    private final float[] metresToPixels = new float[6];
+    private final float[] pixelsToMetres = new float[6];
+
+    /**
+     * @param xdpi pixels per inch along x
+     * @param ydpi pixels per inch along y
+     * @param widthPixels width of the display in pixels
+     * @param heightPixels height of the display in pixels
+     */
+    public DisplayProfile(float xdpi, float ydpi, int widthPixels, int heightPixels) {
+        this.widthPixels = widthPixels;
+        this.heightPixels = heightPixels;
+        double pixelsPerMetreX = xdpi / METRES_PER_INCH;
+        double pixelsPerMetreY = ydpi / METRES_PER_INCH;
+        setAffine(metresToPixels, pixelsPerMetreX, 0, -pixelsPerMetreY, heightPixels); //flip y about the bottom of the screen
+        setAffine(pixelsToMetres, 1.0 / pixelsPerMetreX, 0, -1.0 / pixelsPerMetreY, heightPixels / pixelsPerMetreY);
+    }
+
+    /**
+     * Build a profile from the display's metrics (including any area hidden behind system bars, as the app is full screen).
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    public static DisplayProfile fromDisplay(Display display) {
+        DisplayMetrics metrics = new DisplayMetrics();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            display.getRealMetrics(metrics);
+        } else {
+            display.getMetrics(metrics);
+        }
+        return new DisplayProfile(metrics.xdpi, metrics.ydpi, metrics.widthPixels, metrics.heightPixels);
+    }
+
+    private static void setAffine(float[] matrix, double scaleX, double offsetX, double scaleY, double offsetY) {
+        matrix[0] = (float) scaleX; matrix[1] = 0; matrix[2] = (float) offsetX;
+        matrix[3] = 0; matrix[4] = (float) scaleY; matrix[5] = (float) offsetY;
+    }
+
+    public int getWidthPixels() { return widthPixels; }
+    public int getHeightPixels() { return heightPixels; }
+
+    /**
+     * Convert the first count points of xs and ys from metres to pixels in place.
+     */
+    public void metresToPixels(float[] xs, float[] ys, int count) {
+        apply(metresToPixels, xs, ys, count);
+    }
+
+    /**
+     * Convert the first count points of xs and ys from pixels to metres in place.
+     */
+    public void pixelsToMetres(float[] xs, float[] ys, int count) {
+        apply(pixelsToMetres, xs, ys, count);
+    }
+
+    public void metresToPixels(TrajectoryBuffer trajectory) {
+        metresToPixels(trajectory.xArray(), trajectory.yArray(), trajectory.size());
+    }
+
+    public void pixelsToMetres(TrajectoryBuffer trajectory) {
+        pixelsToMetres(trajectory.xArray(), trajectory.yArray(), trajectory.size());
+    }
+
+    /** x coordinate in metres of a point at pixel (x, y). */
+    public double pixelsToMetresX(double x, double y) {
+        return pixelsToMetres[0] * x + pixelsToMetres[1] * y + pixelsToMetres[2];
+    }
+
+    /** y coordinate in metres of a point at pixel (x, y). */
+    public double pixelsToMetresY(double x, double y) {
+        return pixelsToMetres[3] * x + pixelsToMetres[4] * y + pixelsToMetres[5];
+    }
+
+    private static void apply(float[] m, float[] xs, float[] ys, int count) {
+        float a = m[0], b = m[1], c = m[2], d = m[3], e = m[4], f = m[5];
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            float y = ys[i];
+            xs[i] = a * x + b * y + c;
+            ys[i] = d * x + e * y + f;
+        }
+    }
+}
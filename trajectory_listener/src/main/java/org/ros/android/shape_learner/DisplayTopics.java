@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.view.WindowManager;
+import org.ros.message.Duration;
+import org.ros.message.Time;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import java.util.List;
+import java.util.Locale;
+
+import nav_msgs.Path;
+
+/**
+ * Topics and timing shared by the trajectory displays (DisplayManager and TrajectorySurfaceView): the names of the
+ * topics they use, the publishers for finished shapes (and their timing), watchdog clears and start skew, when a
+ * message asks to be started, how often the display refreshes, how playback commands are interpreted, and what
+ * happens to trajectories which are cleared. Each display subscribes to its own topics, so that it can handle
+ * messages on the thread it draws on.
+ */
+class DisplayTopics {
+    private static final java.lang.String TAG = "DisplayTopics";
+    private static final float DEFAULT_REFRESH_RATE = 60f; //Hz, if the display doesn't report one
+    private static final boolean SHOW_SHAPE_STRAIGHT_AWAY = false; //if using a simulated time, this should be true, so don't wait until the requested start time of shape
+    private String clearScreenTopicName;
+    private String finishedShapeTopicName;
+    private String finishedShapeTimingTopicName;
+    private String clearWatchdogTopicName;
+    private String playbackControlTopicName;
+    private String startSkewTopicName;
+    private Publisher<std_msgs.String> finishedShapePublisher;
+    private Publisher<std_msgs.String> finishedShapeTimingPublisher;
+    private Publisher<std_msgs.Empty> clearWatchdogPublisher;
+    private Publisher<std_msgs.Duration> startSkewPublisher;
+    private ConnectedNode connectedNode;
+
+    /**
+     * What playback commands act on (see applyPlaybackCommand).
+     */
+    interface PlaybackControl {
+        /** Player of the most recently shown trajectory, if it is still playing. */
+        TrajectoryPlayer getActivePlayer();
+
+        /** Set the rate at which the active and subsequent trajectories are played. */
+        void setPlaybackRate(double playbackRate);
+    }
+
+    void setClearScreenTopicName(String topicName) { this.clearScreenTopicName = topicName; }
+    void setFinishedShapeTopicName(String topicName) { this.finishedShapeTopicName = topicName; }
+    void setFinishedShapeTimingTopicName(String topicName) { this.finishedShapeTimingTopicName = topicName; }
+    void setClearWatchdogTopicName(String topicName) { this.clearWatchdogTopicName = topicName; }
+    void setPlaybackControlTopicName(String topicName) { this.playbackControlTopicName = topicName; }
+    void setStartSkewTopicName(String topicName) { this.startSkewTopicName = topicName; }
+
+    String getClearScreenTopicName() { return clearScreenTopicName; }
+
+    /** Topic on which playback commands are received, or null if they aren't. */
+    String getPlaybackControlTopicName() { return playbackControlTopicName; }
+
+    /**
+     * Create the publishers, once the display's node has started.
+     */
+    void start(ConnectedNode connectedNode) {
+        this.connectedNode = connectedNode;
+        this.finishedShapePublisher =
+                connectedNode.newPublisher(finishedShapeTopicName, std_msgs.String._TYPE);
+        this.clearWatchdogPublisher =
+                connectedNode.newPublisher(clearWatchdogTopicName, std_msgs.Empty._TYPE);
+        if (finishedShapeTimingTopicName != null) {
+            this.finishedShapeTimingPublisher =
+                    connectedNode.newPublisher(finishedShapeTimingTopicName, std_msgs.String._TYPE);
+        }
+        if (startSkewTopicName != null) {
+            this.startSkewPublisher =
+                    connectedNode.newPublisher(startSkewTopicName, std_msgs.Duration._TYPE);
+        }
+    }
+
+    /**
+     * Publish that a trajectory has finished ("true", as it always has been), and if the timing topic is set and the
+     * trajectory's header is known, its identity and timing on that topic (see describeFinishedShape).
+     *
+     * @param header header of the message the trajectory came from, or null if it isn't known
+     */
+    void publishShapeFinished(std_msgs.Header header, TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs) {
+        Log.e(TAG, "Publishing shape finished message.");
+        std_msgs.String message = finishedShapePublisher.newMessage();
+        message.setData(String.valueOf(true));
+        finishedShapePublisher.publish(message);
+        if (finishedShapeTimingPublisher != null && header != null) {
+            std_msgs.String timingMessage = finishedShapeTimingPublisher.newMessage();
+            timingMessage.setData(describeFinishedShape(header, trajectory, startFrameTime_nsecs, endFrameTime_nsecs, connectedNode));
+            finishedShapeTimingPublisher.publish(timingMessage);
+        }
+    }
+
+    void publishWatchdogClear() {
+        std_msgs.Empty message = clearWatchdogPublisher.newMessage();
+        clearWatchdogPublisher.publish(message);
+    }
+
+    void publishStartSkew(long skew_nsecs) {
+        Log.i(TAG, "Trajectory started " + skew_nsecs / 1000000.0 + "ms after requested time");
+        if (startSkewPublisher != null) {
+            std_msgs.Duration message = startSkewPublisher.newMessage();
+            message.setData(Duration.fromNano(skew_nsecs));
+            startSkewPublisher.publish(message);
+        }
+    }
+
+    /**
+     * Contents of a shape finished timing message: space-separated fields "id=&lt;header seq&gt;", then
+     * "planned_start", "planned_end", "actual_start" and "actual_end" as ROS times in seconds. Planned times come from
+     * the header stamp and the trajectory's duration at the current rate; actual times are those of the first frame of
+     * playback and of the frame on which the completed trajectory was drawn.
+     */
+    static String describeFinishedShape(std_msgs.Header header, TrajectoryDrawable trajectory, long startFrameTime_nsecs,
+                                        long endFrameTime_nsecs, ConnectedNode connectedNode) {
+        StringBuilder description = new StringBuilder();
+        Time plannedStart = header.getStamp();
+        Time plannedEnd = plannedStart.add(Duration.fromNano(Math.round(trajectory.getDuration_nsecs() / trajectory.getPlayer().getRate())));
+        //convert from the monotonic clock used for playback to ROS time
+        Time now = connectedNode.getCurrentTime();
+        long now_nsecs = System.nanoTime();
+        Time actualStart = now.add(Duration.fromNano(startFrameTime_nsecs - now_nsecs));
+        Time actualEnd = now.add(Duration.fromNano(endFrameTime_nsecs - now_nsecs));
+        description.append("id=").append(header.getSeq());
+        description.append(" planned_start=").append(String.format(Locale.US, "%.6f", plannedStart.toSeconds()));
+        description.append(" planned_end=").append(String.format(Locale.US, "%.6f", plannedEnd.toSeconds()));
+        description.append(" actual_start=").append(String.format(Locale.US, "%.6f", actualStart.toSeconds()));
+        description.append(" actual_end=").append(String.format(Locale.US, "%.6f", actualEnd.toSeconds()));
+        return description.toString();
+    }
+
+    /**
+     * Time at which a message asks to be started, converted from its ROS header stamp to the monotonic clock used for
+     * playback (System.nanoTime() timebase), or -1 to start it straight away.
+     */
+    long getRequestedStartTime_nsecs(Object message) {
+        if (!(message instanceof nav_msgs.Path) || SHOW_SHAPE_STRAIGHT_AWAY) {
+            return -1;
+        }
+        Duration delay = ((Path) message).getHeader().getStamp().subtract(connectedNode.getCurrentTime());
+        Log.e(TAG, "scheduling message to start in " + Math.round(delay.totalNsecs() / 1000000.0) + "ms");
+        return System.nanoTime() + Math.max(0, delay.totalNsecs());
+    }
+
+    /**
+     * Release the live layers of a display which has been cleared (on the thread they are played on). They are no
+     * longer drawn, but trajectories which are still playing carry on until they finish (a streamed one no longer waits
+     * for more chunks), so that their shape finished messages are still published.
+     */
+    static void releaseClearedLayers(List<Drawable> layers) {
+        for (Drawable layer : layers) {
+            layer.setCallback(null);
+            if (layer instanceof TrajectoryDrawable) {
+                ((TrajectoryDrawable) layer).setAwaitingMorePoints(false);
+            }
+        }
+    }
+
+    /**
+     * Time between refreshes of the display a view is shown on.
+     */
+    static long getFrameInterval_nsecs(Context context) {
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+        if (refreshRate <= 0) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        return Math.round(1e9 / refreshRate);
+    }
+
+    /**
+     * Control playback of the active trajectory (on the thread it is played on). Commands are:
+     * "rate &lt;r&gt;" to play the active and subsequent trajectories r times faster than their own timing (r must
+     * be finite and greater than zero), "pause", "resume", and "seek &lt;t&gt;" to jump to t seconds from the start of
+     * the active trajectory.
+     */
+    static void applyPlaybackCommand(String command, PlaybackControl control) {
+        String[] words = command.trim().split("\\s+");
+        TrajectoryPlayer activePlayer = control.getActivePlayer();
+        try {
+            if (words[0].equals("rate") && words.length == 2) {
+                double rate = Double.parseDouble(words[1]);
+                if (!(rate > 0) || Double.isInfinite(rate)) { //also rejects NaN
+                    Log.e(TAG, "Invalid playback rate: " + command);
+                    return;
+                }
+                control.setPlaybackRate(rate);
+            } else if (words[0].equals("pause")) {
+                if (activePlayer != null) {
+                    activePlayer.pause();
+                }
+            } else if (words[0].equals("resume")) {
+                if (activePlayer != null) {
+                    activePlayer.resume();
+                }
+            } else if (words[0].equals("seek") && words.length == 2) {
+                if (activePlayer != null) {
+                    activePlayer.seekTo(Math.round(Double.parseDouble(words[1]) * 1e9));
+                }
+            } else {
+                Log.e(TAG, "Unknown playback command: " + command);
+            }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid playback command: " + command);
+        }
+    }
+}
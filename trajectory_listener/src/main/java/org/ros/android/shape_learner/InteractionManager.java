@@ -16,6 +16,7 @@
 package org.ros.android.shape_learner;
 
 import android.util.Log;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
@@ -44,6 +45,10 @@ class InteractionManager extends AbstractNodeMain {
     private String clearScreenTopicName;
     private Publisher<Path> userDrawnShapePublisher;
     private String userDrawnShapeTopicName;
+    private Time streamedStrokeStamp; //header stamp shared by the chunks of the stroke being streamed
+    private long streamedStrokeStartTime_msecs; //start time of that stroke, which identifies it
+    private int streamedChunkSeq; //header seq of the last chunk of that stroke
+    private volatile boolean started = false;
 
     public void setTouchInfoTopicName(String topicName) {
         this.touchInfoTopicName = topicName;
@@ -74,9 +79,15 @@ class InteractionManager extends AbstractNodeMain {
                 connectedNode.newPublisher(clearScreenTopicName, Empty._TYPE);
         this.userDrawnShapePublisher =
                 connectedNode.newPublisher(userDrawnShapeTopicName, Path._TYPE);
+        started = true;
 
     }
 
+    /**
+     * Whether the node has started, so messages can be published.
+     */
+    public boolean isStarted() { return started; }
+
   public void publishTouchInfoMessage(double x, double y) {
 
     geometry_msgs.PointStamped pointStamped = touchInfoPublisher.newMessage();
@@ -103,15 +114,45 @@ class InteractionManager extends AbstractNodeMain {
         clearScreenPublisher.publish(message);
     }
 
-    public void publishUserDrawnShapeMessage(ArrayList<double[]> points){
+    public void publishUserDrawnShapeMessage(TrajectoryBuffer points){
+        publishUserDrawnPathMessage(points, connectedNode.getCurrentTime(), 0);
+    }
+
+    /**
+     * Publish part of a stroke while it is still being drawn. Chunks of one stroke share the header stamp of the first
+     * (the time it was published), have consecutive header seqs, and their poses are stamped relative to the start
+     * of the stroke, so they can be appended to each other as they arrive.
+     *
+     * @param chunk points of the chunk, in metres
+     * @param strokeStartTime_msecs start time of the stroke the chunk belongs to (see
+     *                              SignatureView.getStrokeStartTime_msecs); a chunk with a different start time from the
+     *                              last begins a new stroke, even if that stroke's first chunks weren't published
+     */
+    public void publishUserDrawnChunkMessage(TrajectoryBuffer chunk, long strokeStartTime_msecs){
+        if(streamedStrokeStamp == null || strokeStartTime_msecs != streamedStrokeStartTime_msecs){
+            streamedStrokeStamp = connectedNode.getCurrentTime();
+            streamedStrokeStartTime_msecs = strokeStartTime_msecs;
+            streamedChunkSeq = 0;
+        }else{
+            streamedChunkSeq++;
+        }
+        publishUserDrawnPathMessage(chunk, streamedStrokeStamp, streamedChunkSeq);
+    }
+
+    private void publishUserDrawnPathMessage(TrajectoryBuffer points, Time stamp, int seq){
         nav_msgs.Path message = userDrawnShapePublisher.newMessage();
-        message.getHeader().setStamp(connectedNode.getCurrentTime());
+        message.getHeader().setStamp(stamp);
+        message.getHeader().setSeq(seq);
 
-        for(double[] point : points){
+        for(int i = 0; i < points.size(); i++){
             PoseStamped poseStamped = connectedNode.getTopicMessageFactory().newFromType(PoseStamped._TYPE);
 
-            poseStamped.getPose().getPosition().setX(point[0]);
-            poseStamped.getPose().getPosition().setY(point[1]);
+            poseStamped.getPose().getPosition().setX(points.getX(i));
+            poseStamped.getPose().getPosition().setY(points.getY(i));
+            poseStamped.getHeader().setStamp(Time.fromNano(points.getTime_nsecs(i))); //time relative to the start of the shape (or of the first stroke, for strokes sent together)
+            if(points.isPenUp(i)){
+                poseStamped.getHeader().setSeq(1);
+            }
 
             message.getPoses().add(poseStamped);
         }
@@ -120,11 +161,15 @@ class InteractionManager extends AbstractNodeMain {
         userDrawnShapePublisher.publish(message);
     }
 
-    public void publishUserDrawnMessageMessage(ArrayList< ArrayList<double[]> > userDrawnMessage){
+    public void publishUserDrawnMessageMessage(ArrayList<TrajectoryBuffer> userDrawnMessage){
         Log.e(TAG, "Publishing user-drawn message");
-        for(ArrayList<double[]> stroke : userDrawnMessage){
+        for(TrajectoryBuffer stroke : userDrawnMessage){
             publishUserDrawnShapeMessage(stroke);
         }
-        publishUserDrawnShapeMessage(new ArrayList<double[]>()); //publish empty stroke to show message is done
+        publishEndOfUserDrawnMessage();
+    }
+
+    public void publishEndOfUserDrawnMessage(){
+        publishUserDrawnShapeMessage(new TrajectoryBuffer()); //publish empty stroke to show message is done
     }
 }
\ No newline at end of file
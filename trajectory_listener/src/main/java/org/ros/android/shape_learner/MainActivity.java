@@ -16,13 +16,7 @@
 
 package org.ros.android.shape_learner;
 
-import android.graphics.Color;
-import android.graphics.CornerPathEffect;
-import android.graphics.Paint;
-import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.ShapeDrawable;
-import android.graphics.drawable.shapes.PathShape;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
@@ -34,48 +28,64 @@ import org.ros.android.MessageCallable;
 import org.ros.android.RosActivity;
 //import org.ros.android.android_gingerbread_mr1.R;
 import org.ros.message.Duration;
+import org.ros.message.MessageFactory;
+import org.ros.message.Time;
 import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 import org.ros.time.NtpTimeProvider;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.ImageButton;
 
-import java.util.List;
-
 import geometry_msgs.PoseStamped;
 
+
 /**
  * @author damonkohler@google.com (Damon Kohler). modified by Deanna Hood.
  */
 
 
 public class MainActivity extends RosActivity {
-    private InteractionManager interactionManager;
+    private volatile InteractionManager interactionManager; //created once the node is ready to be started
     private static final java.lang.String TAG = "trajectoryListener";
     private int timeoutDuration_mSecs = -1; //time in ms to leave the trajectory displayed before removing it (negative displays indefinitely)
-    private double PPI_tablet = 298.9; //pixels per inch of android tablet
-    private int[] resolution_tablet = {2560, 1600};
-    private double MM2INCH = 0.0393701; //number of millimetres in one inch (for conversions)
+    private DisplayProfile displayProfile; //converts between metres in 'robot frame' and pixels in 'tablet frame'
     private DisplayManager<nav_msgs.Path> displayManager;
+    private TrajectorySurfaceView<nav_msgs.Path> surfaceDisplay; //used instead of displayManager if renderingOnSurface
+    private boolean renderingOnSurface = false; //whether to animate trajectories on a render thread rather than the UI thread
     private SignatureView userDrawingsView;
     private SignatureView userGestureView;
     private Button buttonClear;
     private ImageButton buttonSend;
-    private ArrayList< ArrayList<double[]> > userDrawnMessage = new ArrayList<ArrayList<double[]>>();
+    private ArrayList<TrajectoryBuffer> userDrawnMessage = new ArrayList<TrajectoryBuffer>();
+    private long userDrawnMessageStartTime_msecs; //start time of the first stroke in userDrawnMessage (SystemClock.uptimeMillis() timebase)
+    private boolean recordingPressureAndTilt = false; //whether to keep the stylus pressure and tilt of user strokes (not published, as nav_msgs.Path can't carry them)
     private GestureDetector gestureDetector;
     private boolean longClicked = true;
     private int timeBetweenWatchdogClears_ms = 100;
     private boolean replayingUserShapes = false;
+    private float simplificationTolerance_px = 0.5f; //how far (in pixels) incoming trajectories may be simplified before display (non-positive to disable)
+    private boolean streamingUserStrokes = false; //whether to publish user strokes as they are drawn, rather than when send is pressed (clear can't take them back)
+    private final ExecutorService userStrokePublishingExecutor = Executors.newSingleThreadExecutor(); //publishes streamed user strokes off the UI thread, in order
+    private int userStrokeChunkInterval_ms = -1; //when streaming user strokes, how often to publish the part drawn so far (negative for whole strokes)
+    private boolean streamingTrajectories = false; //whether the robot sends long trajectories as chunks sharing a header stamp
+    private TrajectoryCache trajectoryCache = new TrajectoryCache(64, 4 * 1024 * 1024); //prepared trajectories, by content
+    private long displayMemoryBudget_bytes = 48 * 1024 * 1024; //bytes the display may hold before baking older trajectories into its bitmap
+    private final MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory(); //for the poses of merged trajectories
     public MainActivity() {
     // The RosActivity constructor configures the notification title and ticker
     // messages.
@@ -93,34 +103,47 @@ public class MainActivity extends RosActivity {
           Log.e(TAG,"Should be fullscreen now");
       //}
       setContentView(R.layout.main);
+      displayProfile = DisplayProfile.fromDisplay(getWindowManager().getDefaultDisplay());
       buttonClear = (Button)findViewById(R.id.buttonClear);
       buttonClear.setOnClickListener(clearListener); // Register the onClick listener with the implementation below
       buttonSend = (ImageButton)findViewById(R.id.buttonSend);
       buttonSend.setOnClickListener(sendListener); // Register the onClick listener with the implementation below
 
-      final double rate = 1.0;
       startWatchdogClearer();
 
       //for collecting user demonstrations
       userDrawingsView = (SignatureView)findViewById(R.id.signature);
       userDrawingsView.setRespondToFinger(false);
       userDrawingsView.setRespondToStylus(true);
-      userDrawingsView.setStylusStrokeFinishedCallable(new MessageCallable<Integer, ArrayList<double[]>>() {
+      userDrawingsView.setStrokeStyle(StrokeStyle.USER_STYLUS);
+      if(recordingPressureAndTilt){
+          userDrawingsView.setRecordingPressureAndTilt();
+      }
+      userDrawingsView.setStylusStrokeFinishedCallable(new MessageCallable<Integer, PointSequence>() {
           @Override
-          public Integer call(ArrayList<double[]> message) {
+          public Integer call(PointSequence message) {
               onStylusStrokeDrawingFinished(message);
               return 1;
           }
       });
 
+      if(streamingUserStrokes){
+          userDrawingsView.setStylusStrokeChunkListener(new SignatureView.StrokeChunkListener() {
+              @Override
+              public void onStrokeChunk(PointSequence stroke, int start, int end, boolean strokeFinished) {
+                  publishUserStrokeChunk(stroke, start, end);
+              }
+          }, userStrokeChunkInterval_ms * 1000000L);
+      }
+
       //for collecting user gestures
       userGestureView = (SignatureView)findViewById(R.id.gestureView);
       userGestureView.setRespondToFinger(true);
       userGestureView.setRespondToStylus(false);
-      userGestureView.setColor(Color.RED);
-      userGestureView.setFingerStrokeFinishedCallable(new MessageCallable<Integer, ArrayList<double[]>>() {
+      userGestureView.setStrokeStyle(StrokeStyle.FINGER_GESTURE);
+      userGestureView.setFingerStrokeFinishedCallable(new MessageCallable<Integer, PointSequence>() {
           @Override
-          public Integer call(ArrayList<double[]> message) {
+          public Integer call(PointSequence message) {
               onFingerStrokeDrawingFinished(message);
               return 1;
           }
@@ -133,80 +156,30 @@ public class MainActivity extends RosActivity {
           displayManager.setTopicName("write_traj");//"user_shapes");//
       }
       displayManager.setMessageType(nav_msgs.Path._TYPE);
+      displayManager.setMemoryBudget_bytes(displayMemoryBudget_bytes);
+      displayManager.setStreamingEnabled(streamingTrajectories);
 
       displayManager.setMessageToDrawableCallable(new MessageCallable<Drawable, nav_msgs.Path>() {
         @Override
         public Drawable call(nav_msgs.Path message) {
-            double[] shapeCentre_offset = {00.0,00.0};
-            ShapeDrawable blankShapeDrawable = new ShapeDrawable(new PathShape(new android.graphics.Path(), 0, 0));
-            blankShapeDrawable.setIntrinsicHeight(displayManager.getHeight());
-            blankShapeDrawable.setIntrinsicWidth(displayManager.getWidth());
-            blankShapeDrawable.setBounds(0, 0, displayManager.getWidth(), displayManager.getHeight());
-
-            List<PoseStamped> points = message.getPoses();
-            AnimationDrawable animationDrawable = new AnimationDrawable();
-
-            android.graphics.Path trajPath = new android.graphics.Path();
-            trajPath.moveTo((float) (M2PX(points.get(0).getPose().getPosition().getX()) + shapeCentre_offset[0]), resolution_tablet[1] - (float) (M2PX(points.get(0).getPose().getPosition().getY()) + shapeCentre_offset[1]));
-
-            long timeUntilFirstFrame_msecs = Math.round(points.get(0).getHeader().getStamp().totalNsecs() / 1000000.0);
-            animationDrawable.addFrame(blankShapeDrawable, (int) (timeUntilFirstFrame_msecs/rate));
-            int totalTime = (int)timeUntilFirstFrame_msecs;
-
-            for (int i = 0; i < points.size() - 1; i++) //special case for last point/frame of trajectory
-            {
-                //add new trajectory point onto path and create ShapeDrawable to pass as a frame for animation
-                PoseStamped p = points.get(i);
-                PoseStamped p_next = points.get(i+1);
-                geometry_msgs.Point tx = p.getPose().getPosition();
-                geometry_msgs.Point tx_next = p_next.getPose().getPosition();
-                boolean penUp = p.getHeader().getSeq() == 1;
-                boolean penUp_next = p_next.getHeader().getSeq() == 1;
-                ShapeDrawable shapeDrawable;
-                if(penUp_next){
-                    shapeDrawable = addPointToShapeDrawablePath((float) (shapeCentre_offset[0]+M2PX(tx.getX())), resolution_tablet[1] - (float) (shapeCentre_offset[1]+M2PX(tx.getY())), trajPath, penUp);
-                }else{
-                    shapeDrawable = addPointToShapeDrawablePath_quad((float) (shapeCentre_offset[0]+M2PX(tx.getX())), resolution_tablet[1] - (float) (shapeCentre_offset[1]+M2PX(tx.getY())), (float) (shapeCentre_offset[0]+M2PX(tx_next.getX())), resolution_tablet[1] - (float) (shapeCentre_offset[1]+M2PX(tx_next.getY())), trajPath, penUp);
-                }
-                //determine the duration of the frame for the animation
-                Duration frameDuration = points.get(i + 1).getHeader().getStamp().subtract(p.getHeader().getStamp()); // take difference between times to get appropriate duration for frame to be displayed
-
-                long dt_msecs = Math.round(frameDuration.totalNsecs() / 1000000.0);
-                animationDrawable.addFrame(shapeDrawable, (int) (dt_msecs/rate)); //unless the duration is over 2mil seconds the cast is ok
-                totalTime+=(int)dt_msecs;
-            }
-            //cover end case
-            PoseStamped p = points.get(points.size() - 1);
-            boolean penUp = p.getHeader().getSeq() == 1;
-            geometry_msgs.Point tx = p.getPose().getPosition();
-            float pointToAdd_x = (float) (M2PX(tx.getX()) + shapeCentre_offset[0]);
-            float pointToAdd_y = resolution_tablet[1] - (float) (M2PX(tx.getY()) + shapeCentre_offset[1]);
-            ShapeDrawable shapeDrawable = addPointToShapeDrawablePath(pointToAdd_x, pointToAdd_y, trajPath, penUp);
-
-
-            if (timeoutDuration_mSecs >= 0)//only display the last frame until timeoutDuration has elapsed
-            {
-                animationDrawable.addFrame(shapeDrawable, (int) (timeoutDuration_mSecs/rate));
-                animationDrawable.addFrame(blankShapeDrawable, 0); //stop displaying
-            } else { //display last frame indefinitely
-                //don't add an extra frame unless necessary because otherwise it will delay the animationFinished message!
-                animationDrawable.addFrame(shapeDrawable, 0); //think it will be left there until something clears it so time shouldn't matter
-            }
-            Log.e(TAG,"Total time (in theory): " + String.valueOf(totalTime));
-            animationDrawable.setBounds(0, 0, displayManager.getWidth(), displayManager.getHeight());
-            animationDrawable.setOneShot(true); //do not auto-restart the animation
-
-            // Pass our animation drawable to drawable class with callback on finish
-            AnimationDrawableWithEndCallback animationDrawableWithEndCallback = new AnimationDrawableWithEndCallback(animationDrawable) {
-                @Override
-                void onAnimationFinish() {
-                    // Animation has finished...
-                    onShapeDrawingFinish();
-                }
-            };
-            return animationDrawableWithEndCallback;
+            return prepareTrajectoryDrawable(message, displayManager.getWidth(), displayManager.getHeight(),
+                    displayManager.getFrameInterval_nsecs(), displayManager.getPlaybackRate());
         }
     });
+      //only used in streaming mode, for the chunks which follow the first of a trajectory
+      displayManager.setStreamedChunkCallable(new MessageCallable<TrajectoryBuffer, nav_msgs.Path>() {
+          @Override
+          public TrajectoryBuffer call(nav_msgs.Path message) {
+              return prepareTrajectoryPoints(message, displayManager.getFrameInterval_nsecs());
+          }
+      });
+      //only used if the inbound queue's policy is set to MERGE_INTO_LATEST
+      displayManager.setMessageMerger(new BoundedMessageQueue.Merger<nav_msgs.Path>() {
+          @Override
+          public nav_msgs.Path merge(nav_msgs.Path pending, nav_msgs.Path incoming) {
+              return appendTrajectory(pending, incoming);
+          }
+      });
       displayManager.setClearScreenCallable(new MessageCallable<Integer, Integer>() {
           @Override
           public Integer call(Integer  message) {
@@ -214,6 +187,9 @@ public class MainActivity extends RosActivity {
               return 1;
           }
       });
+      if(renderingOnSurface){
+          setUpSurfaceDisplay();
+      }
 
       gestureDetector = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
           @Override
@@ -222,45 +198,164 @@ public class MainActivity extends RosActivity {
               float y = e.getY();
               Log.e(TAG, "Double tap at: ["+String.valueOf(x)+", "+String.valueOf(y)+"]");
               //publish touch event in world coordinates instead of tablet coordinates
-              interactionManager.publishGestureInfoMessage(PX2M(x), PX2M(resolution_tablet[1] - y));
+              interactionManager.publishGestureInfoMessage(displayProfile.pixelsToMetresX(x, y), displayProfile.pixelsToMetresY(x, y));
               longClicked = true;
           }
       });
   }
 
-    private void onStylusStrokeDrawingFinished(ArrayList<double[]> points){
-        //convert from pixels in 'tablet frame' to metres in 'robot frame'
-        for(double[] point : points){
-            point[0] = PX2M(point[0]);                        //x coordinate
-            point[1] = PX2M(resolution_tablet[1] - point[1]); //y coordinate
+    //Replace the DisplayManager with a TrajectorySurfaceView, which animates trajectories on its own render thread
+    private void setUpSurfaceDisplay(){
+        surfaceDisplay = new TrajectorySurfaceView<nav_msgs.Path>(this);
+        ViewGroup parent = (ViewGroup) displayManager.getParent();
+        int index = parent.indexOfChild(displayManager);
+        parent.removeView(displayManager);
+        parent.addView(surfaceDisplay, index, displayManager.getLayoutParams());
+        surfaceDisplay.setTopicName(replayingUserShapes ? "user_shapes" : "write_traj");
+        surfaceDisplay.setMessageType(nav_msgs.Path._TYPE);
+        surfaceDisplay.setMessageToDrawableCallable(new MessageCallable<Drawable, nav_msgs.Path>() {
+            @Override
+            public Drawable call(nav_msgs.Path message) {
+                return prepareTrajectoryDrawable(message, surfaceDisplay.getWidth(), surfaceDisplay.getHeight(),
+                        surfaceDisplay.getFrameInterval_nsecs(), surfaceDisplay.getPlaybackRate());
+            }
+        });
+        surfaceDisplay.setMessageMerger(new BoundedMessageQueue.Merger<nav_msgs.Path>() {
+            @Override
+            public nav_msgs.Path merge(nav_msgs.Path pending, nav_msgs.Path incoming) {
+                return appendTrajectory(pending, incoming);
+            }
+        });
+        surfaceDisplay.setClearScreenCallable(new MessageCallable<Integer, Integer>() {
+            @Override
+            public Integer call(Integer message) {
+                onClearScreen();
+                return 1;
+            }
+        });
+    }
+
+    //Convert a trajectory message into a drawable which animates it on a display of the given size
+    private TrajectoryDrawable prepareTrajectoryDrawable(nav_msgs.Path message, int width, int height, long frameInterval_nsecs, double playbackRate){
+        //a repeated trajectory (e.g. a replayed shape) reuses the points prepared the first time it was received
+        long cacheKey = TrajectoryCache.keyOf(message);
+        TrajectoryBuffer trajectory = trajectoryCache.get(cacheKey, message);
+        if (trajectory == null) {
+            trajectory = prepareTrajectoryPoints(message, frameInterval_nsecs);
+            trajectoryCache.put(cacheKey, message, trajectory);
+        }
+        Log.i(TAG, "Trajectory cache: " + trajectoryCache.getHitCount() + " hits, " + trajectoryCache.getMissCount() + " misses, " + trajectoryCache.getEvictionCount() + " evictions, " + trajectoryCache.getCollisionCount() + " collisions");
+        if (streamingTrajectories) {
+            trajectory = trajectory.copy(); //a streamed trajectory has chunks appended to it, so can't share the cached points
+        }
+        TrajectoryDrawable trajectoryDrawable = new TrajectoryDrawable(trajectory, trajectoryStyle().getPaint());
+        trajectoryDrawable.setBounds(0, 0, width, height);
+        //poses closer together than a display refresh are revealed together
+        trajectoryDrawable.mergeFrames(Math.round(frameInterval_nsecs * playbackRate));
+        Log.i(TAG, "Merged " + trajectoryDrawable.getMergedFrameCount() + " of " + trajectory.size() + " poses into other frames");
+
+        TrajectoryPlayer player = trajectoryDrawable.getPlayer();
+        player.setFrameInterval_nsecs(frameInterval_nsecs); //to merge the poses again if the rate is lowered during playback
+        if (timeoutDuration_mSecs >= 0)//only display the completed trajectory until timeoutDuration has elapsed
+        {
+            player.setHoldDuration_nsecs(timeoutDuration_mSecs * 1000000L);
+        }
+        Log.e(TAG,"Total time (in theory): " + String.valueOf(Math.round(trajectoryDrawable.getDuration_nsecs() / 1000000.0)));
+        player.addListener(new TrajectoryPlayer.SimpleListener() {
+            @Override
+            public void onPlaybackFinished(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs) {
+                // Animation has finished...
+                Log.e(TAG, "Total time (actual): " + String.valueOf(Math.round((endFrameTime_nsecs - startFrameTime_nsecs) / 1000000.0)));
+                onShapeDrawingFinish(trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+            }
+        });
+        return trajectoryDrawable;
+    }
+
+    //Decode a trajectory message into points in pixels in 'tablet frame', without those the display can't resolve
+    private TrajectoryBuffer prepareTrajectoryPoints(nav_msgs.Path message, long frameInterval_nsecs){
+        //decode the trajectory once, then convert it from metres in 'robot frame' to pixels in 'tablet frame'
+        TrajectoryBuffer trajectory = TrajectoryBuffer.fromPath(message);
+        displayProfile.metresToPixels(trajectory);
+        if (simplificationTolerance_px > 0) {
+            //drop points the display can't resolve
+            int numPointsReceived = trajectory.size();
+            trajectory = TrajectorySimplifier.simplify(trajectory, simplificationTolerance_px, frameInterval_nsecs); //one refresh at normal rate
+            Log.i(TAG, "Simplified trajectory from " + numPointsReceived + " to " + trajectory.size() + " points (ratio " + String.valueOf((float) trajectory.size() / numPointsReceived) + ")");
+        }
+        return trajectory;
+    }
+
+    //Publish part of a stroke straight away, so the learner can start processing it before send is pressed. Called from
+    //the view's touch handling, so only the points are copied here; they are converted and published on another thread
+    private void publishUserStrokeChunk(PointSequence stroke, int start, int end){
+        final InteractionManager publisher = interactionManager;
+        if(end <= start || publisher == null || !publisher.isStarted()){
+            return; //an empty path would mark the end of the message, and there is nothing to publish with until the node has started
+        }
+        final long strokeStartTime_msecs = userDrawingsView.getStrokeStartTime_msecs(); //identifies the stroke, so its chunks share a stamp
+        //copy the chunk, as the view reuses its points
+        final TrajectoryBuffer chunk = new TrajectoryBuffer(end - start);
+        if(stroke.hasPressureAndTilt()){
+            chunk.enablePressureAndTilt();
+        }
+        for(int i = start; i < end; i++){
+            chunk.add(stroke.getX(i), stroke.getY(i), stroke.getTime_nsecs(i), false, stroke.getPressure(i), stroke.getTilt(i));
+        }
+        userStrokePublishingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //convert from pixels in 'tablet frame' to metres in 'robot frame'
+                displayProfile.pixelsToMetres(chunk);
+                publisher.publishUserDrawnChunkMessage(chunk, strokeStartTime_msecs);
+            }
+        });
+    }
+
+    private void onStylusStrokeDrawingFinished(PointSequence points){
+        if(streamingUserStrokes){
+            return; //already published
+        }
+        //the strokes of a message are published together when send is pressed, so time their points from the start of the
+        //message's first stroke rather than their own, to keep the pauses between them
+        long strokeStartTime_msecs = userDrawingsView.getStrokeStartTime_msecs();
+        if(userDrawnMessage.isEmpty()){
+            userDrawnMessageStartTime_msecs = strokeStartTime_msecs;
+        }
+        //copy the stroke (the view reuses its points), then convert from pixels in 'tablet frame' to metres in 'robot frame'
+        TrajectoryBuffer stroke = new TrajectoryBuffer(points.size());
+        if(points.hasPressureAndTilt()){
+            stroke.enablePressureAndTilt();
         }
-        //interactionManager.publishUserDrawnShapeMessage(points);
+        stroke.addAll(points, (strokeStartTime_msecs - userDrawnMessageStartTime_msecs) * 1000000L);
+        displayProfile.pixelsToMetres(stroke);
+        //interactionManager.publishUserDrawnShapeMessage(stroke);
         Log.e(TAG, "Adding stroke to message");
-        userDrawnMessage.add(points);
+        userDrawnMessage.add(stroke);
     }
      //When a finger-drawn stoke is finished in the SignatureView, publish its centre to the gesture topic
-    private void onFingerStrokeDrawingFinished(ArrayList<double[]> points){
+    private void onFingerStrokeDrawingFinished(PointSequence points){
         if(points.size()>15){
             //convert from pixels in 'tablet frame' to metres in 'robot frame'
             double xMax = Double.NEGATIVE_INFINITY;
             double yMax = Double.NEGATIVE_INFINITY;
             double xMin = Double.POSITIVE_INFINITY;
             double yMin = Double.POSITIVE_INFINITY;
-            for(double[] point : points){
-                point[0] = PX2M(point[0]);                        //x coordinate
-                point[1] = PX2M(resolution_tablet[1] - point[1]); //y coordinate
+            for(int i = 0; i < points.size(); i++){
+                double x = displayProfile.pixelsToMetresX(points.getX(i), points.getY(i)); //x coordinate
+                double y = displayProfile.pixelsToMetresY(points.getX(i), points.getY(i)); //y coordinate
                 //update the max and min values of the stroke
-                if(point[0]>xMax){
-                    xMax = point[0];
+                if(x>xMax){
+                    xMax = x;
                 }
-                if(point[1]>yMax){
-                    yMax = point[1];
+                if(y>yMax){
+                    yMax = y;
                 }
-                if(point[0]<xMin){
-                    xMin = point[0];
+                if(x<xMin){
+                    xMin = x;
                 }
-                if(point[1]<yMin){
-                    yMin = point[1];
+                if(y<yMin){
+                    yMin = y;
                 }
             }
             double xRange = xMax - xMin;
@@ -273,17 +368,70 @@ public class MainActivity extends RosActivity {
         userGestureView.requestClear();
     }
 
+    //Append the poses of one trajectory to another, so that it is drawn as soon as the first has finished (or at its
+    //own requested start time, if that is later), starting with the pen up. Returns null if they can't be combined: an
+    //empty path marks the end of a message (or of a streamed trajectory), and paths sharing a header stamp are chunks
+    //of the same streamed trajectory, whose pose times are already relative to its start
+    private nav_msgs.Path appendTrajectory(nav_msgs.Path pending, nav_msgs.Path incoming){
+        List<PoseStamped> pendingPoses = pending.getPoses();
+        List<PoseStamped> incomingPoses = incoming.getPoses();
+        if(pendingPoses.isEmpty() || incomingPoses.isEmpty() || incoming.getHeader().getStamp().equals(pending.getHeader().getStamp())){
+            return null;
+        }
+        Duration offset = incoming.getHeader().getStamp().subtract(pending.getHeader().getStamp());
+        Duration pendingDuration = pendingPoses.get(pendingPoses.size() - 1).getHeader().getStamp().subtract(new Time());
+        if(offset.compareTo(pendingDuration) < 0){
+            offset = pendingDuration;
+        }
+        for(int i = 0; i < incomingPoses.size(); i++){
+            //shifted copies, so the incoming message is left as it was received
+            PoseStamped pose = incomingPoses.get(i);
+            std_msgs.Header header = messageFactory.newFromType(std_msgs.Header._TYPE);
+            header.setFrameId(pose.getHeader().getFrameId());
+            header.setStamp(pose.getHeader().getStamp().add(offset));
+            header.setSeq(i == 0 ? 1 : pose.getHeader().getSeq()); //pen up
+            PoseStamped shiftedPose = messageFactory.newFromType(PoseStamped._TYPE);
+            shiftedPose.setHeader(header);
+            shiftedPose.setPose(pose.getPose());
+            pendingPoses.add(shiftedPose);
+        }
+        return pending;
+    }
+
     private void onClearScreen(){
         userDrawingsView.requestClear(); //clear display of user-drawn shapes
     }
 
-private void onShapeDrawingFinish(){
+private void onShapeDrawingFinish(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs){
     Log.e(TAG,"Animation finished!");
-    displayManager.publishShapeFinishedMessage();
+    if(renderingOnSurface){
+        surfaceDisplay.publishShapeFinishedMessage(trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+    }else{
+        displayManager.publishShapeFinishedMessage(trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+    }
+}
+private NodeMain displayNode(){
+    return renderingOnSurface ? surfaceDisplay : displayManager;
+}
+private StrokeStyle trajectoryStyle(){
+    return replayingUserShapes ? StrokeStyle.REPLAYED_USER_SHAPE : StrokeStyle.ROBOT_TRAJECTORY;
 }
 private View.OnClickListener sendListener = new View.OnClickListener() {
     public void onClick(View v) {
         Log.e(TAG, "onClick() called - send button");
+        if(streamingUserStrokes){
+            //the strokes have already been published, so just end the message (after any chunks still waiting to be published)
+            final InteractionManager publisher = interactionManager;
+            if(publisher != null && publisher.isStarted()){
+                userStrokePublishingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        publisher.publishEndOfUserDrawnMessage();
+                    }
+                });
+            }
+            return;
+        }
         interactionManager.publishUserDrawnMessageMessage(userDrawnMessage);
         userDrawnMessage.clear(); //empty/reinitialise message
         //interactionManager.publishClearScreenMessage();  //clear display of robot-drawn message
@@ -296,90 +444,22 @@ private View.OnClickListener clearListener = new View.OnClickListener() {
     public void onClick(View v) {
         Log.e(TAG, "onClick() called - clear button");
         //interactionManager.publishClearScreenMessage();  //clear display of robot-drawn message
+        //when streaming, the strokes have already been published and there is no message to take them back, so the
+        //learner still receives them as part of the next message
         userDrawnMessage.clear(); //empty/reinitialise message
         userDrawingsView.clear(); //clear display of user-drawn shapes (would have liked to have
             // done this with a callback upon receipt of clearScreenMessage, but that thread isn't allowed to 'touch' signatureView)
     }
 };
 
-private ShapeDrawable addPointToShapeDrawablePath(float x, float y, android.graphics.Path path, boolean penUp){
-    if(!penUp){
-        // add point to path
-        path.lineTo(x,y);
-    }
-    else{
-        path.moveTo(x,y);
-    }
-
-    // make local copy of path and store in new ShapeDrawable
-    android.graphics.Path currPath = new android.graphics.Path(path);
-
-    ShapeDrawable shapeDrawable = new ShapeDrawable();
-    if(replayingUserShapes){
-        shapeDrawable.getPaint().setColor(Color.argb(255,138,205,165));//Color.BLUE);
-    }
-    else
-    {
-        shapeDrawable.getPaint().setColor(Color.argb(255,124,163,182));//Color.argb(255,138,205,165));//Color.BLUE);
-    }
-    shapeDrawable.getPaint().setStyle(Paint.Style.STROKE);
-    shapeDrawable.getPaint().setStrokeWidth(10);
-    shapeDrawable.getPaint().setStrokeJoin(Paint.Join.ROUND);
-    shapeDrawable.getPaint().setStrokeCap(Paint.Cap.ROUND);
-    shapeDrawable.getPaint().setPathEffect(new CornerPathEffect(30));
-    shapeDrawable.getPaint().setAntiAlias(true);          // set anti alias so it smooths
-    shapeDrawable.setIntrinsicHeight(displayManager.getHeight());
-    shapeDrawable.setIntrinsicWidth(displayManager.getWidth());
-    shapeDrawable.setBounds(0, 0, displayManager.getWidth(), displayManager.getHeight());
-
-    shapeDrawable.setShape(new PathShape(currPath,displayManager.getWidth(),displayManager.getHeight()));
-
-    return shapeDrawable;
-}
 
-private ShapeDrawable addPointToShapeDrawablePath_quad(float x, float y, float x_next, float y_next, android.graphics.Path path, boolean penUp){
-    if(!penUp){
-        // add point to path using quadratic bezier curve
-        path.quadTo(x,y,(x_next+x)/2,(y_next+y)/2);
-    }
-    else{
-        path.moveTo(x,y);
-    }
-    // make local copy of path and store in new ShapeDrawable
-    android.graphics.Path currPath = new android.graphics.Path(path);
 
-    ShapeDrawable shapeDrawable = new ShapeDrawable();
-    if(replayingUserShapes){
-    shapeDrawable.getPaint().setColor(Color.argb(255,138,205,165));//Color.BLUE);
-    }
-    else
-    {
-        shapeDrawable.getPaint().setColor(Color.argb(255,124,163,182));//Color.argb(255,138,205,165));//Color.BLUE);
-    }
-    shapeDrawable.getPaint().setStyle(Paint.Style.STROKE);
-    shapeDrawable.getPaint().setStrokeWidth(10);
-    shapeDrawable.getPaint().setStrokeJoin(Paint.Join.ROUND);
-    shapeDrawable.getPaint().setStrokeCap(Paint.Cap.ROUND);
-    shapeDrawable.getPaint().setPathEffect(new CornerPathEffect(30));
-    shapeDrawable.getPaint().setAntiAlias(true);          // set anti alias so it smooths
-    shapeDrawable.setIntrinsicHeight(displayManager.getHeight());
-    shapeDrawable.setIntrinsicWidth(displayManager.getWidth());
-    shapeDrawable.setBounds(0, 0, displayManager.getWidth(), displayManager.getHeight());
-
-    shapeDrawable.setShape(new PathShape(currPath,displayManager.getWidth(),displayManager.getHeight()));
-
-    return shapeDrawable;
+    @Override
+    protected void onDestroy() {
+        userStrokePublishingExecutor.shutdown();
+        super.onDestroy();
     }
 
-
-private double MM2PX(double x){ return x*MM2INCH*PPI_tablet; }
-private double PX2MM(double x){return x/(PPI_tablet*MM2INCH);}
-
-private double M2PX(double x){return (MM2PX(x)*1000.0);}
-private double PX2M(double x){return PX2MM(x)/1000.0;}
-
-
-
     @Override
   protected void init(NodeMainExecutor nodeMainExecutor) {
         interactionManager = new InteractionManager();
@@ -389,7 +469,18 @@ private double PX2M(double x){return PX2MM(x)/1000.0;}
         displayManager.setClearScreenTopicName("clear_screen");
         displayManager.setClearWatchdogTopicName("watchdog_clear/tablet");
         displayManager.setFinishedShapeTopicName("shape_finished");
+        displayManager.setFinishedShapeTimingTopicName("shape_finished_timing");
+        displayManager.setPlaybackControlTopicName("playback_control");
+        displayManager.setStartSkewTopicName("trajectory_start_skew");
         interactionManager.setUserDrawnShapeTopicName("user_shapes");
+        if(renderingOnSurface){
+            surfaceDisplay.setClearScreenTopicName("clear_screen");
+            surfaceDisplay.setClearWatchdogTopicName("watchdog_clear/tablet");
+            surfaceDisplay.setFinishedShapeTopicName("shape_finished");
+            surfaceDisplay.setFinishedShapeTimingTopicName("shape_finished_timing");
+            surfaceDisplay.setPlaybackControlTopicName("playback_control");
+            surfaceDisplay.setStartSkewTopicName("trajectory_start_skew");
+        }
 
         NodeConfiguration nodeConfiguration = NodeConfiguration.newPublic(InetAddressFactory.newNonLoopback().getHostAddress());
     // At this point, the user has already been prompted to either enter the URI
@@ -406,11 +497,11 @@ private double PX2M(double x){return PX2MM(x)/1000.0;}
       Log.e(TAG, "Ready to execute");
         if(replayingUserShapes){
 
-            nodeMainExecutor.execute(displayManager, nodeConfiguration.setNodeName("android_gingerbread2/display_manager"));
+            nodeMainExecutor.execute(displayNode(), nodeConfiguration.setNodeName("android_gingerbread2/display_manager"));
             nodeMainExecutor.execute(interactionManager, nodeConfiguration.setNodeName("android_gingerbread2/interaction_manager"));
         }
         else{
-    nodeMainExecutor.execute(displayManager, nodeConfiguration.setNodeName("android_gingerbread/display_manager"));
+    nodeMainExecutor.execute(displayNode(), nodeConfiguration.setNodeName("android_gingerbread/display_manager"));
     nodeMainExecutor.execute(interactionManager, nodeConfiguration.setNodeName("android_gingerbread/interaction_manager"));
         }
   }
@@ -430,7 +521,7 @@ private double PX2M(double x){return PX2MM(x)/1000.0;}
                     int y = (int)event.getY();
                     Log.e(TAG, "Touch at: ["+String.valueOf(x)+", "+String.valueOf(y)+"]");
                     //publish touch event in world coordinates instead of tablet coordinates
-                    interactionManager.publishTouchInfoMessage(PX2M(x), PX2M(resolution_tablet[1] - y));
+                    interactionManager.publishTouchInfoMessage(displayProfile.pixelsToMetresX(x, y), displayProfile.pixelsToMetresY(x, y));
                 }
                 break;
         }
@@ -453,7 +544,11 @@ private double PX2M(double x){return PX2MM(x)/1000.0;}
                             //PerformBackgroundTask performBackgroundTask = new PerformBackgroundTask();
                             // PerformBackgroundTask this class is the class that extends AsynchTask
                             //performBackgroundTask.execute();
-                            displayManager.publishWatchdogClearMessage();
+                            if(renderingOnSurface){
+                                surfaceDisplay.publishWatchdogClearMessage();
+                            }else{
+                                displayManager.publishWatchdogClearMessage();
+                            }
                         } catch (Exception e) {
                             // TODO Auto-generated catch block
                         }
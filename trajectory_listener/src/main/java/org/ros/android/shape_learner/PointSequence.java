@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+/**
+ * Read-only view of a sequence of points, e.g. a stroke captured by a SignatureView.
+ *
+ * The points behind a view may be reused once the call it was passed to returns, so anything which needs
+ * them later must copy them.
+ */
+public interface PointSequence {
+    int size();
+    float getX(int i);
+    float getY(int i);
+    /** Time of point i, relative to the start of the sequence. */
+    long getTime_nsecs(int i);
+    /** Whether pressure and tilt were recorded for the points. */
+    boolean hasPressureAndTilt();
+    /** Pressure of point i (normally 0 to 1), or 0 if not recorded. */
+    float getPressure(int i);
+    /** Tilt of point i in radians from perpendicular to the screen, or 0 if not recorded. */
+    float getTilt(int i);
+}
@@ -2,6 +2,7 @@ package org.ros.android.shape_learner;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -15,26 +16,31 @@ import android.util.Log;
 
 import org.ros.android.MessageCallable;
 
-import java.util.ArrayList;
-
 /**
  * from http://corner.squareup.com/2010/07/smooth-signatures.html apache 2.0 license
  * Modified by deanna on 7/05/14.
  */
 public class SignatureView extends View {
     private static final java.lang.String TAG = "SignatureView";
-    private MessageCallable<Integer, ArrayList<double[]> > stylusStrokeFinishedCallable;
-    private MessageCallable<Integer, ArrayList<double[]> > fingerStrokeFinishedCallable;
+    private MessageCallable<Integer, PointSequence> stylusStrokeFinishedCallable;
+    private MessageCallable<Integer, PointSequence> fingerStrokeFinishedCallable;
+    private StrokeChunkListener stylusStrokeChunkListener;
+    private long chunkInterval_nsecs = -1; //how often to pass on the points of a stroke being drawn (negative for only at pen-up)
+    private int chunkStart = 0; //index of the first point of the current stroke not yet passed on as a chunk
     private boolean respondToFinger = false;
     private boolean respondToStylus = false;
-    private static final float STROKE_WIDTH = 10f;
+    private static final float STROKE_WIDTH = StrokeStyle.STROKE_WIDTH;
 
     /** Need to track this so the dirty region can accommodate the stroke. **/
     private static final float HALF_STROKE_WIDTH = STROKE_WIDTH / 2;
 
-    private Paint paint = new Paint();
-    private Path path = new Path();
-    private ArrayList<double[]> pointsOnPath = new ArrayList<double[]>();
+    private Paint paint = StrokeStyle.USER_STYLUS.getPaint();
+    private Path path = new Path(); //stroke being drawn
+    private final StrokeSmoother smoother = new StrokeSmoother(); //curves the stroke through its points as they arrive
+    private Bitmap committedBitmap; //finished strokes, drawn once so redrawing doesn't get slower as more is written (null until a stylus stroke is committed)
+    private Canvas committedCanvas;
+    private final TrajectoryBuffer pointsOnPath = new TrajectoryBuffer(256); //points of the current stroke, reused for every stroke
+    private long strokeStartTime_msecs; //event time of the first point of the current stroke (SystemClock.uptimeMillis() timebase)
 
     /**
      * Optimizes painting by invalidating the smallest possible area.
@@ -45,35 +51,75 @@ public class SignatureView extends View {
 
     public SignatureView(Context context, AttributeSet attrs) {
         super(context, attrs);
-
-        paint.setAntiAlias(true);
-        paint.setColor(Color.GREEN);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeJoin(Paint.Join.ROUND);
-        paint.setStrokeWidth(STROKE_WIDTH);
     }
 
     /**
-     * Set which function will be called when a stroke is finished (pen-up detected).
+     * Set which function will be called when a stroke is finished (pen-up detected). The points passed to it are only
+     * valid until it returns.
      */
-    public void setStylusStrokeFinishedCallable(MessageCallable<Integer, ArrayList<double[]> > callable) {
+    public void setStylusStrokeFinishedCallable(MessageCallable<Integer, PointSequence> callable) {
         this.stylusStrokeFinishedCallable = callable;
     }
     /**
-     * Set which function will be called when a stroke is finished (pen-up detected).
+     * Set which function will be called when a stroke is finished (pen-up detected). The points passed to it are only
+     * valid until it returns.
      */
-    public void setFingerStrokeFinishedCallable(MessageCallable<Integer, ArrayList<double[]> > callable) {
+    public void setFingerStrokeFinishedCallable(MessageCallable<Integer, PointSequence> callable) {
         this.fingerStrokeFinishedCallable = callable;
     }
 
     /**
-     * Set paint color of path
+     * Receives the points of a stroke in chunks while it is being drawn.
+     */
+    public interface StrokeChunkListener {
+        /**
+         * @param stroke points of the stroke so far (only valid until this returns)
+         * @param start index of the first point of the chunk
+         * @param end index after the last point of the chunk
+         * @param strokeFinished whether this is the last chunk of the stroke (pen-up detected)
+         */
+        void onStrokeChunk(PointSequence stroke, int start, int end, boolean strokeFinished);
+    }
+
+    /**
+     * Set a listener to be passed the points of each stylus stroke as it is being drawn: every interval_nsecs of
+     * stroke time (or only once, at pen-up, if negative), and then the remaining points at pen-up (before the
+     * stroke finished callable is called).
+     */
+    public void setStylusStrokeChunkListener(StrokeChunkListener listener, long interval_nsecs) {
+        this.stylusStrokeChunkListener = listener;
+        this.chunkInterval_nsecs = interval_nsecs;
+    }
+
+    /**
+     * Set the shared style to draw the path with
+     * @param style style to use e.g. StrokeStyle.USER_STYLUS
+     */
+    public void setStrokeStyle(StrokeStyle style){
+        paint = style.getPaint();
+        invalidate();
+    }
+
+    /**
+     * Set paint color of path (uses a private copy of the current style's paint)
      * @param color color to set to e.g. Color.GREEN
      */
     public void setColor(int color){
+        paint = new Paint(paint);
         paint.setColor(color);
     }
 
+    /**
+     * Record the pressure and tilt of each point of strokes from now on (as well as their position and time).
+     */
+    public void setRecordingPressureAndTilt(){ pointsOnPath.enablePressureAndTilt(); }
+
+    /**
+     * Event time of the first point of the stroke being drawn, or of the last stroke once it has finished
+     * (SystemClock.uptimeMillis() timebase). The times of a stroke's points are relative to this.
+     */
+    public long getStrokeStartTime_msecs(){ return strokeStartTime_msecs; }
+
     public void setRespondToFinger(boolean _respondToFinger){ respondToFinger = _respondToFinger;}
     public void setRespondToStylus(boolean _respondToStylus){ respondToStylus = _respondToStylus;}
 
@@ -82,12 +128,50 @@ public class SignatureView extends View {
      */
     public void clear() {
         path.reset();
+        if(committedBitmap != null){
+            committedBitmap.eraseColor(Color.TRANSPARENT);
+        }
         // Repaints the entire view.
         invalidate();
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if(committedBitmap != null && w > 0 && h > 0){
+            Bitmap previous = committedBitmap;
+            committedBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            committedCanvas = new Canvas(committedBitmap);
+            committedCanvas.drawBitmap(previous, 0, 0, null);
+            previous.recycle();
+        }
+    }
+
+    /**
+     * Draw the finished stroke into the committed bitmap (created on the first commit) and start the next stroke on an
+     * empty path. Only views which respond to the stylus keep their ink; others (e.g. for finger gestures, which are
+     * cleared once handled) keep drawing their strokes as a path rather than holding a full-screen bitmap.
+     */
+    private void commitStroke(){
+        if(!respondToStylus){
+            return;
+        }
+        if(committedCanvas == null){
+            if(getWidth() <= 0 || getHeight() <= 0){
+                return; //not laid out yet, so keep drawing the path
+            }
+            committedBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            committedCanvas = new Canvas(committedBitmap);
+        }
+        committedCanvas.drawPath(path, paint);
+        path.rewind();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
+        if(committedBitmap != null){
+            canvas.drawBitmap(committedBitmap, 0, 0, null);
+        }
         canvas.drawPath(path, paint);
         //Log.e(TAG,"Drawing now");
 
@@ -102,7 +186,10 @@ public class SignatureView extends View {
             if(respondToFinger){
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
-                    path.moveTo(eventX, eventY);
+                    pointsOnPath.clear();
+                    strokeStartTime_msecs = event.getEventTime();
+                    recordPoint(eventX, eventY, event.getEventTime(), event.getPressure(), event.getAxisValue(MotionEvent.AXIS_TILT));
+                    smoother.begin(path, eventX, eventY);
                     lastTouchX = eventX;
                     lastTouchY = eventY;
                     // There is no end point yet, so don't waste cycles invalidating.
@@ -114,10 +201,12 @@ public class SignatureView extends View {
                 case MotionEvent.ACTION_UP:
 
                     drawRecentPoints(event);
+                    smoother.end();
                     if(fingerStrokeFinishedCallable != null){
                         fingerStrokeFinishedCallable.call(pointsOnPath);
                     }
-                    pointsOnPath = new ArrayList<double[]>();
+                    pointsOnPath.clear();
+                    commitStroke();
                     break;
 
                 default:
@@ -144,7 +233,11 @@ public class SignatureView extends View {
             if(respondToStylus){
                 switch (event.getAction()) {
                     case MotionEvent.ACTION_DOWN:
-                        path.moveTo(eventX, eventY);
+                        pointsOnPath.clear();
+                        chunkStart = 0;
+                        strokeStartTime_msecs = event.getEventTime();
+                        recordPoint(eventX, eventY, event.getEventTime(), event.getPressure(), event.getAxisValue(MotionEvent.AXIS_TILT));
+                        smoother.begin(path, eventX, eventY);
                         lastTouchX = eventX;
                         lastTouchY = eventY;
                         // There is no end point yet, so don't waste cycles invalidating.
@@ -152,13 +245,19 @@ public class SignatureView extends View {
 
                     case MotionEvent.ACTION_MOVE:
                         drawRecentPoints(event);
+                        passOnChunkIfDue();
                         break;
                     case MotionEvent.ACTION_UP:
                         drawRecentPoints(event);
+                        smoother.end();
+                        if(stylusStrokeChunkListener != null){
+                            stylusStrokeChunkListener.onStrokeChunk(pointsOnPath, chunkStart, pointsOnPath.size(), true);
+                        }
                         if(stylusStrokeFinishedCallable != null){
                             stylusStrokeFinishedCallable.call(pointsOnPath);
                         }
-                        pointsOnPath = new ArrayList<double[]>();
+                        pointsOnPath.clear();
+                        commitStroke();
                         break;
 
                     default:
@@ -187,6 +286,7 @@ public class SignatureView extends View {
     /**
      * Called when new points need to be drawn (during motion or on pen-up).
      */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void drawRecentPoints(MotionEvent event){
         float eventX = event.getX();
         float eventY = event.getY();
@@ -202,13 +302,36 @@ public class SignatureView extends View {
             float historicalX = event.getHistoricalX(i);
             float historicalY = event.getHistoricalY(i);
             expandDirtyRect(historicalX, historicalY);
-            path.lineTo(historicalX, historicalY);
-            double[] point = {historicalX, historicalY};
-            pointsOnPath.add(point);
+            smoother.add(historicalX, historicalY);
+            recordPoint(historicalX, historicalY, event.getHistoricalEventTime(i), event.getHistoricalPressure(i),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_TILT, i));
         }
 
-        // After replaying history, connect the line to the touch point.
-        path.lineTo(eventX, eventY);
+        // After replaying history, continue the curve to the touch point.
+        smoother.add(eventX, eventY);
+        recordPoint(eventX, eventY, event.getEventTime(), event.getPressure(), event.getAxisValue(MotionEvent.AXIS_TILT));
+    }
+
+    /**
+     * Pass on the points drawn since the last chunk if the chunk interval has elapsed since then (in stroke time).
+     */
+    private void passOnChunkIfDue(){
+        if(stylusStrokeChunkListener == null || chunkInterval_nsecs < 0 || pointsOnPath.size() <= chunkStart){
+            return;
+        }
+        long chunkStartTime_nsecs = chunkStart == 0 ? 0 : pointsOnPath.getTime_nsecs(chunkStart - 1);
+        if(pointsOnPath.getTime_nsecs(pointsOnPath.size() - 1) - chunkStartTime_nsecs >= chunkInterval_nsecs){
+            stylusStrokeChunkListener.onStrokeChunk(pointsOnPath, chunkStart, pointsOnPath.size(), false);
+            chunkStart = pointsOnPath.size();
+        }
+    }
+
+    /**
+     * Add a sample to the current stroke, timed relative to the start of the stroke (pressure and tilt are only kept
+     * if recording them).
+     */
+    private void recordPoint(float x, float y, long eventTime_msecs, float pressure, float tilt){
+        pointsOnPath.add(x, y, (eventTime_msecs - strokeStartTime_msecs) * 1000000L, false, pressure, tilt);
     }
 
     /**
@@ -239,6 +362,9 @@ public class SignatureView extends View {
         dirtyRect.right = Math.max(lastTouchX, eventX);
         dirtyRect.top = Math.min(lastTouchY, eventY);
         dirtyRect.bottom = Math.max(lastTouchY, eventY);
+        // The smoothed path ends midway between the last two samples, so the new curve starts there rather than at
+        // the last touch point.
+        expandDirtyRect(smoother.getEndX(), smoother.getEndY());
     }
 
     public void requestClear(){
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.graphics.Path;
+
+/**
+ * The curve used to draw a stroke through its points, shared by everything which draws strokes so that
+ * robot and user ink look the same.
+ *
+ * The first point of a stroke is moved to, each point after it is the control point of a quadratic curve
+ * ending midway to the next point, and the last point is joined with a line. Each point's segment only
+ * depends on it and the next point, so a stroke can be smoothed incrementally as its points arrive: an
+ * instance does this for a stroke being captured, with constant work per point.
+ */
+public class StrokeSmoother {
+    private Path path;
+    private float lastX;
+    private float lastY;
+    private float endX; //where the path currently ends
+    private float endY;
+    private int numPoints = 0;
+
+    /**
+     * Add the segment for a point of a stroke to a path.
+     *
+     * @param first whether the point is the first of its stroke
+     * @param last whether the point is the last of its stroke
+     * @param nextX x coordinate of the next point (unused for the first and last points)
+     * @param nextY y coordinate of the next point (unused for the first and last points)
+     */
+    public static void addSegment(Path path, float x, float y, boolean first, boolean last, float nextX, float nextY) {
+        if (first) {
+            path.moveTo(x, y);
+        } else if (last) {
+            path.lineTo(x, y);
+        } else {
+            path.quadTo(x, y, (x + nextX) / 2, (y + nextY) / 2);
+        }
+    }
+
+    /**
+     * Start smoothing a new stroke onto a path.
+     */
+    public void begin(Path path, float x, float y) {
+        this.path = path;
+        lastX = x;
+        lastY = y;
+        endX = x;
+        endY = y;
+        numPoints = 1;
+        addSegment(path, x, y, true, false, 0, 0);
+    }
+
+    /**
+     * Add the next point of the stroke. This completes the previous point's segment, so the path ends
+     * midway between the previous point and this one until the next point (or the end of the stroke).
+     */
+    public void add(float x, float y) {
+        if (numPoints > 1) {
+            addSegment(path, lastX, lastY, false, false, x, y);
+            endX = (lastX + x) / 2;
+            endY = (lastY + y) / 2;
+        }
+        lastX = x;
+        lastY = y;
+        numPoints++;
+    }
+
+    /**
+     * Finish the stroke at its last point.
+     */
+    public void end() {
+        if (numPoints > 1) {
+            addSegment(path, lastX, lastY, false, true, 0, 0);
+            endX = lastX;
+            endY = lastY;
+        }
+        numPoints = 0;
+    }
+
+    /** x coordinate of the end of the path so far, where the next segment added will start. */
+    public float getEndX() { return endX; }
+
+    /** y coordinate of the end of the path so far, where the next segment added will start. */
+    public float getEndY() { return endY; }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.graphics.Color;
+import android.graphics.CornerPathEffect;
+import android.graphics.Paint;
+
+/**
+ * Shared paints for each kind of stroke drawn on the tablet, built once and reused by every drawing.
+ *
+ * The paints are shared, so they must not be modified; copy one with new Paint(paint) to change it.
+ */
+public enum StrokeStyle {
+    ROBOT_TRAJECTORY(Color.argb(255,124,163,182), true),   //shapes written by the robot
+    REPLAYED_USER_SHAPE(Color.argb(255,138,205,165), true), //user shapes played back as trajectories
+    USER_STYLUS(Color.GREEN, false),                       //shapes the user is writing with the stylus
+    FINGER_GESTURE(Color.RED, false);                      //gestures the user is making with a finger
+
+    public static final float STROKE_WIDTH = 10f;
+    private static final float CORNER_RADIUS = 30f;
+
+    private final Paint paint;
+
+    StrokeStyle(int color, boolean smoothCorners) {
+        paint = new Paint();
+        paint.setColor(color);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(STROKE_WIDTH);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setAntiAlias(true);          // set anti alias so it smooths
+        if (smoothCorners) {
+            paint.setStrokeCap(Paint.Cap.ROUND);
+            paint.setPathEffect(new CornerPathEffect(CORNER_RADIUS));
+        }
+    }
+
+    /**
+     * The shared paint for this style (do not modify).
+     */
+    public Paint getPaint() {
+        return paint;
+    }
+}
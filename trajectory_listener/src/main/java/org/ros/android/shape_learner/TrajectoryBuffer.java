@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import geometry_msgs.PoseStamped;
+
+/**
+ * Points of a trajectory stored as packed primitive arrays (x, y, time and pen-up state).
+ *
+ * A nav_msgs.Path is decoded into a buffer once, after which renderers and publishers read the
+ * arrays directly instead of walking the message's pose objects. Buffers grow as needed and can be
+ * cleared and refilled to avoid reallocating. Buffers of captured strokes can also hold the pressure
+ * and tilt of each point (see enablePressureAndTilt).
+ */
+public class TrajectoryBuffer implements PointSequence {
+    private static final int DEFAULT_CAPACITY = 64;
+    private float[] xs;
+    private float[] ys;
+    private long[] times_nsecs; //time of each point relative to the start of the trajectory
+    private final BitSet penUps = new BitSet(); //set for points which should be moved to without drawing
+    private float[] pressures; //pressure of each point, or null if not recorded
+    private float[] tilts; //tilt of each point in radians from perpendicular to the screen, or null if not recorded
+    private int size = 0;
+    //index of the first point of each stroke (the first point, and every pen-up point), built as points are first asked about
+    private int[] strokeStarts = new int[4];
+    private int numStrokes = 0;
+    private int numPointsIndexed = 0;
+
+    public TrajectoryBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TrajectoryBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        xs = new float[capacity];
+        ys = new float[capacity];
+        times_nsecs = new long[capacity];
+    }
+
+    /**
+     * Decode a path into a new buffer (coordinates in metres, as in the message).
+     */
+    public static TrajectoryBuffer fromPath(nav_msgs.Path path) {
+        TrajectoryBuffer buffer = new TrajectoryBuffer(path.getPoses().size());
+        buffer.decode(path);
+        return buffer;
+    }
+
+    /**
+     * Replace the contents of this buffer with the poses of a path. Pen-up is indicated by a pose header seq of 1,
+     * and pose stamps give the time of each point relative to the start of the trajectory.
+     */
+    public void decode(nav_msgs.Path path) {
+        List<PoseStamped> poses = path.getPoses();
+        clear();
+        ensureCapacity(poses.size());
+        for (PoseStamped pose : poses) {
+            geometry_msgs.Point position = pose.getPose().getPosition();
+            std_msgs.Header header = pose.getHeader();
+            add((float) position.getX(), (float) position.getY(), header.getStamp().totalNsecs(), header.getSeq() == 1);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        penUps.clear();
+        numStrokes = 0;
+        numPointsIndexed = 0;
+    }
+
+    /**
+     * Record a pressure and tilt for each point from now on (points added without them get 0).
+     */
+    public void enablePressureAndTilt() {
+        if (pressures == null) {
+            pressures = new float[xs.length];
+            tilts = new float[xs.length];
+        }
+    }
+
+    @Override
+    public boolean hasPressureAndTilt() { return pressures != null; }
+
+    public void add(float x, float y, long time_nsecs, boolean penUp) {
+        ensureCapacity(size + 1);
+        xs[size] = x;
+        ys[size] = y;
+        times_nsecs[size] = time_nsecs;
+        penUps.set(size, penUp);
+        if (pressures != null) {
+            pressures[size] = 0;
+            tilts[size] = 0;
+        }
+        size++;
+    }
+
+    /**
+     * Add a point with its pressure and tilt (which are only kept if enablePressureAndTilt has been called).
+     */
+    public void add(float x, float y, long time_nsecs, boolean penUp, float pressure, float tilt) {
+        add(x, y, time_nsecs, penUp);
+        if (pressures != null) {
+            pressures[size - 1] = pressure;
+            tilts[size - 1] = tilt;
+        }
+    }
+
+    /**
+     * Add all the points of a sequence to the end of this buffer (with their pressure and tilt, if both record them).
+     */
+    public void addAll(PointSequence points) {
+        addAll(points, 0);
+    }
+
+    /**
+     * Add all the points of a sequence to the end of this buffer, with timeOffset_nsecs added to their times.
+     */
+    public void addAll(PointSequence points, long timeOffset_nsecs) {
+        ensureCapacity(size + points.size());
+        boolean withPressureAndTilt = points.hasPressureAndTilt();
+        for (int i = 0; i < points.size(); i++) {
+            long time_nsecs = points.getTime_nsecs(i) + timeOffset_nsecs;
+            if (withPressureAndTilt) {
+                add(points.getX(i), points.getY(i), time_nsecs, false, points.getPressure(i), points.getTilt(i));
+            } else {
+                add(points.getX(i), points.getY(i), time_nsecs, false);
+            }
+        }
+    }
+
+    /**
+     * Add all the points of another buffer to the end of this one.
+     */
+    public void append(TrajectoryBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.xs, 0, xs, size, other.size);
+        System.arraycopy(other.ys, 0, ys, size, other.size);
+        System.arraycopy(other.times_nsecs, 0, times_nsecs, size, other.size);
+        for (int i = other.penUps.nextSetBit(0); i >= 0 && i < other.size; i = other.penUps.nextSetBit(i + 1)) {
+            penUps.set(size + i);
+        }
+        if (pressures != null) {
+            if (other.pressures != null) {
+                System.arraycopy(other.pressures, 0, pressures, size, other.size);
+                System.arraycopy(other.tilts, 0, tilts, size, other.size);
+            } else {
+                Arrays.fill(pressures, size, size + other.size, 0);
+                Arrays.fill(tilts, size, size + other.size, 0);
+            }
+        }
+        size += other.size;
+    }
+
+    /**
+     * A new buffer with the same points as this one.
+     */
+    public TrajectoryBuffer copy() {
+        TrajectoryBuffer copy = new TrajectoryBuffer(size);
+        if (pressures != null) {
+            copy.enablePressureAndTilt();
+        }
+        copy.append(this);
+        return copy;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > xs.length) {
+            int newCapacity = Math.max(capacity, xs.length * 2);
+            xs = Arrays.copyOf(xs, newCapacity);
+            ys = Arrays.copyOf(ys, newCapacity);
+            times_nsecs = Arrays.copyOf(times_nsecs, newCapacity);
+            if (pressures != null) {
+                pressures = Arrays.copyOf(pressures, newCapacity);
+                tilts = Arrays.copyOf(tilts, newCapacity);
+            }
+        }
+    }
+
+    @Override
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    @Override
+    public float getX(int i) { return xs[i]; }
+    @Override
+    public float getY(int i) { return ys[i]; }
+    @Override
+    public long getTime_nsecs(int i) { return times_nsecs[i]; }
+    public boolean isPenUp(int i) { return penUps.get(i); }
+    @Override
+    public float getPressure(int i) { return pressures == null ? 0 : pressures[i]; }
+    @Override
+    public float getTilt(int i) { return tilts == null ? 0 : tilts[i]; }
+
+    /** Number of strokes (runs of points starting at the first point or a pen-up point). */
+    public int getNumberOfStrokes() {
+        indexStrokes();
+        return numStrokes;
+    }
+
+    /** Index of the first point of the given stroke. */
+    public int getStrokeStart(int stroke) {
+        indexStrokes();
+        return strokeStarts[stroke];
+    }
+
+    /** Index after the last point of the given stroke. */
+    public int getStrokeEnd(int stroke) {
+        indexStrokes();
+        return stroke + 1 < numStrokes ? strokeStarts[stroke + 1] : size;
+    }
+
+    /** Index of the stroke which point i belongs to (binary search). */
+    public int getStrokeOf(int i) {
+        indexStrokes();
+        int low = 0;
+        int high = numStrokes - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (strokeStarts[mid] <= i) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Extend the stroke index over any points added since it was last built (points are only ever appended, so
+     * strokes already indexed don't change, except that the last one may have grown).
+     */
+    private void indexStrokes() {
+        if (numPointsIndexed == size) {
+            return;
+        }
+        if (numPointsIndexed == 0) {
+            addStrokeStart(0);
+        }
+        for (int i = penUps.nextSetBit(Math.max(numPointsIndexed, 1)); i >= 0 && i < size; i = penUps.nextSetBit(i + 1)) {
+            addStrokeStart(i);
+        }
+        numPointsIndexed = size;
+    }
+
+    private void addStrokeStart(int i) {
+        if (numStrokes == strokeStarts.length) {
+            strokeStarts = Arrays.copyOf(strokeStarts, numStrokes * 2);
+        }
+        strokeStarts[numStrokes++] = i;
+    }
+
+    /** Time of the last point, relative to the start of the trajectory. */
+    public long getDuration_nsecs() { return size == 0 ? 0 : times_nsecs[size - 1]; }
+
+    /**
+     * Index of the first point whose time is after time_nsecs, i.e. the number of points due by then
+     * (binary search, as times are non-decreasing).
+     */
+    public int countPointsDueBy(long time_nsecs) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times_nsecs[mid] <= time_nsecs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Approximate number of bytes used by the buffer's arrays.
+     */
+    public long estimateByteCount() {
+        return (long) xs.length * (pressures == null ? 4 + 4 + 8 : 4 + 4 + 8 + 4 + 4) + penUps.size() / 8 + strokeStarts.length * 4;
+    }
+
+    /*
+     * Direct access to the backing arrays for bulk processing; only the first size() entries are valid.
+     */
+    float[] xArray() { return xs; }
+    float[] yArray() { return ys; }
+    long[] timeArray() { return times_nsecs; }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import geometry_msgs.PoseStamped;
+
+/**
+ * Least-recently-used cache of prepared trajectories (decoded, converted to pixels and simplified), keyed by a hash
+ * of the pose geometry, timing and pen-up flags of the message they were prepared from. The header stamp is not part
+ * of the key, so a trajectory re-sent to start at a different time reuses the prepared points and is only re-timed.
+ * The decoded poses are kept with each entry and compared with the message on a hit, so a hash collision is treated
+ * as a miss rather than returning another trajectory.
+ *
+ * Cached buffers are shared between every drawable made from them, so must not be modified. The cache assumes the
+ * preparation (display profile, simplification tolerance) doesn't change while it is in use. Thread-safe.
+ */
+public class TrajectoryCache {
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true); //in access order
+    private final int maxEntries;
+    private final long maxBytes;
+    private long heldBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long collisionCount = 0;
+
+    private static class Entry {
+        final TrajectoryBuffer source; //poses of the message, as decoded
+        final TrajectoryBuffer prepared;
+
+        Entry(TrajectoryBuffer source, TrajectoryBuffer prepared) {
+            this.source = source;
+            this.prepared = prepared;
+        }
+
+        long estimateByteCount() {
+            return source.estimateByteCount() + prepared.estimateByteCount();
+        }
+
+        /**
+         * Whether the path has the poses this entry was prepared from.
+         */
+        boolean matches(nav_msgs.Path path) {
+            List<PoseStamped> poses = path.getPoses();
+            if (poses.size() != source.size()) {
+                return false;
+            }
+            for (int i = 0; i < poses.size(); i++) {
+                PoseStamped pose = poses.get(i);
+                geometry_msgs.Point position = pose.getPose().getPosition();
+                if ((float) position.getX() != source.getX(i) || (float) position.getY() != source.getY(i)
+                        || pose.getHeader().getStamp().totalNsecs() != source.getTime_nsecs(i)
+                        || (pose.getHeader().getSeq() == 1) != source.isPenUp(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param maxEntries maximum number of trajectories to hold
+     * @param maxBytes maximum total size of the trajectories held
+     */
+    public TrajectoryCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Key identifying a path's poses (positions, times relative to the start and pen-up flags), ignoring its header.
+     */
+    public static long keyOf(nav_msgs.Path path) {
+        List<PoseStamped> poses = path.getPoses();
+        long hash = 0xcbf29ce484222325L; //64-bit FNV-1a over the values of each pose
+        hash = mix(hash, poses.size());
+        for (PoseStamped pose : poses) {
+            geometry_msgs.Point position = pose.getPose().getPosition();
+            hash = mix(hash, Double.doubleToLongBits(position.getX()));
+            hash = mix(hash, Double.doubleToLongBits(position.getY()));
+            hash = mix(hash, pose.getHeader().getStamp().totalNsecs());
+            hash = mix(hash, pose.getHeader().getSeq() == 1 ? 1 : 0);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @param key key of the path (see keyOf)
+     * @param path the path itself, to check the entry was prepared from the same poses
+     * @return the trajectory prepared from the path, or null if there is none
+     */
+    public synchronized TrajectoryBuffer get(long key, nav_msgs.Path path) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.matches(path)) {
+            collisionCount++;
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.prepared;
+    }
+
+    /**
+     * Hold the trajectory prepared from a path, evicting the least recently used ones to stay within the limits.
+     */
+    public synchronized void put(long key, nav_msgs.Path path, TrajectoryBuffer trajectory) {
+        trajectory.getNumberOfStrokes(); //build the stroke index now, so readers on other threads don't have to
+        Entry entry = new Entry(TrajectoryBuffer.fromPath(path), trajectory);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            heldBytes -= previous.estimateByteCount();
+        }
+        heldBytes += entry.estimateByteCount();
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || heldBytes > maxBytes) && iterator.hasNext()) {
+            Entry evicted = iterator.next().getValue();
+            iterator.remove();
+            heldBytes -= evicted.estimateByteCount();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        heldBytes = 0;
+    }
+
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getHeldBytes() { return heldBytes; }
+    public synchronized long getHitCount() { return hitCount; }
+    public synchronized long getMissCount() { return missCount; }
+    public synchronized long getEvictionCount() { return evictionCount; }
+
+    /** Number of lookups whose key matched an entry prepared from different poses. */
+    public synchronized long getCollisionCount() { return collisionCount; }
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PixelFormat;
+import android.graphics.RectF;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Draws a trajectory as a series of paths (one or more per stroke), extended as more of the trajectory is revealed.
+ *
+ * Points are only ever appended to the current path while the revealed count grows, so building the whole
+ * animation is linear in the number of points (instead of copying the path for every frame). A new path is begun
+ * at the start of each stroke and every POINTS_PER_BLOCK points within a stroke (overlapping the previous path by one
+ * segment, which is drawn twice, so the stroke has no seam), and completed paths are left alone:
+ * going backwards (seeking) only rebuilds the block being returned to, so costs at most POINTS_PER_BLOCK segments
+ * however long the trajectory is. Completed blocks outside the canvas's clip are skipped when drawing. Starting the drawable plays it back in real time with a TrajectoryPlayer.
+ */
+public class TrajectoryDrawable extends Drawable implements Animatable {
+    private static final int BYTES_PER_PATH_SEGMENT = 2 * 8 + 1;
+    private static final int POINTS_PER_BLOCK = 256; //maximum points per path, which bounds the work to rebuild one
+    private final TrajectoryBuffer points; //trajectory in pixel coordinates
+    private final Paint paint;
+    private final ArrayList<Path> blockPaths = new ArrayList<Path>(); //one per block started so far (kept for reuse after going backwards)
+    private final ArrayList<RectF> blockBounds = new ArrayList<RectF>(); //area covered by each completed block
+    private int[] blockStarts = new int[4]; //index of the first point of each block
+    private int numBlocksOnPath = 0; //number of blocks with at least one point on their path
+    private int numCompletedBlocks = 0; //number of blocks with all their points on their path
+    private int numPointsOnPath = 0; //number of points which have been added to the paths so far
+    private int numCompletedStrokes = 0; //number of strokes with all their points on a path
+    private final ArrayList<StrokeListener> strokeListeners = new ArrayList<StrokeListener>();
+    private int[] stepEnds; //number of points revealed once each render step is shown (null if poses are not merged)
+    private long[] stepTimes_nsecs; //time at which each render step is shown
+    private int numSteps = 0;
+    private long frameInterval_nsecs = -1; //interval points are merged at, if any
+    private boolean awaitingMorePoints = false; //true while more of a streamed trajectory may still arrive
+    private final TrajectoryPlayer player = new TrajectoryPlayer(this);
+
+    /**
+     * @param points trajectory in pixel coordinates, with the time at which each point should be revealed
+     *               relative to the start of the trajectory (not copied; only modified through append)
+     * @param paint paint to draw the trajectory with, usually shared from a StrokeStyle (not copied or modified)
+     */
+    public TrajectoryDrawable(TrajectoryBuffer points, Paint paint) {
+        this.points = points;
+        this.paint = paint;
+    }
+
+    /**
+     * Notified (on the thread revealing the trajectory) each time all the points of a stroke have been revealed.
+     */
+    public interface StrokeListener {
+        /**
+         * @param trajectory the trajectory being revealed
+         * @param stroke index of the stroke which has been completed
+         */
+        void onStrokeRevealed(TrajectoryDrawable trajectory, int stroke);
+    }
+
+    public void addStrokeListener(StrokeListener listener) { strokeListeners.add(listener); }
+    public void removeStrokeListener(StrokeListener listener) { strokeListeners.remove(listener); }
+
+    public TrajectoryPlayer getPlayer() { return player; }
+
+    public TrajectoryBuffer getPoints() { return points; }
+
+    public int getNumberOfPoints() { return points.size(); }
+
+    public int getRevealedCount() { return numPointsOnPath; }
+
+    public int getNumberOfStrokes() { return points.getNumberOfStrokes(); }
+
+    /** Number of strokes whose points have all been revealed. */
+    public int getRevealedStrokeCount() { return numCompletedStrokes; }
+
+    /**
+     * Mark whether more points may still be appended to this trajectory. While they may, playback doesn't finish
+     * at the last point received, and that point isn't revealed until its successor is known (so it can be joined
+     * smoothly to it).
+     */
+    public void setAwaitingMorePoints(boolean awaitingMorePoints) {
+        this.awaitingMorePoints = awaitingMorePoints;
+    }
+
+    public boolean isAwaitingMorePoints() { return awaitingMorePoints; }
+
+    /**
+     * Add the points of a chunk (pixel coordinates, with times relative to the start of this trajectory and no
+     * earlier than its last point) to the end of this trajectory. They are revealed as playback reaches their times.
+     */
+    public void append(TrajectoryBuffer chunk) {
+        points.append(chunk);
+        if (stepEnds != null) {
+            extendSteps();
+        }
+    }
+
+    /**
+     * Approximate number of bytes held by this drawable: its points plus the path built from those revealed so far
+     * (each path segment stores up to two points and a verb).
+     */
+    public long estimateByteCount() {
+        return points.estimateByteCount() + (long) numPointsOnPath * BYTES_PER_PATH_SEGMENT;
+    }
+
+    /**
+     * Time at which the last point of the trajectory is revealed, relative to the start of the trajectory.
+     */
+    public long getDuration_nsecs() {
+        return points.getDuration_nsecs();
+    }
+
+    /**
+     * Reveal the first count points of the trajectory.
+     */
+    public void setRevealedCount(int count) {
+        if (reveal(count)) {
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Reveal all points of the trajectory which are due at the given time since the start of the trajectory.
+     */
+    public void setRevealedTime(long time_nsecs) {
+        if (stepEnds == null) {
+            setRevealedCount(points.countPointsDueBy(time_nsecs));
+            return;
+        }
+        int low = 0; //binary search for the number of steps due
+        int high = numSteps;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (stepTimes_nsecs[mid] <= time_nsecs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        setRevealedCount(low == 0 ? 0 : stepEnds[low - 1]);
+    }
+
+    /**
+     * Group consecutive points which fall within one display refresh of each other into a single render step,
+     * revealed together at the time of the step's first point. Points closer together than a frame could never be
+     * shown separately, so this saves path updates and invalidates without changing what is seen.
+     *
+     * @param frameInterval_nsecs time between display refreshes, in trajectory time (non-positive for no merging, so
+     *                            each point is its own render step)
+     */
+    public void mergeFrames(long frameInterval_nsecs) {
+        this.frameInterval_nsecs = frameInterval_nsecs;
+        if (frameInterval_nsecs <= 0) {
+            stepEnds = null;
+            stepTimes_nsecs = null;
+            numSteps = 0;
+            return;
+        }
+        stepEnds = new int[points.size()];
+        stepTimes_nsecs = new long[points.size()];
+        numSteps = 0;
+        extendSteps();
+    }
+
+    /** Interval (in trajectory time) points have been merged at, or non-positive if they aren't merged. */
+    public long getMergeInterval_nsecs() { return frameInterval_nsecs; }
+
+    /**
+     * Group any points after the last render step into steps (reopening the last step, as later points may belong in it).
+     */
+    private void extendSteps() {
+        int numPoints = points.size();
+        long[] times_nsecs = points.timeArray();
+        if (stepEnds.length < numPoints) {
+            stepEnds = Arrays.copyOf(stepEnds, Math.max(numPoints, stepEnds.length * 2));
+            stepTimes_nsecs = Arrays.copyOf(stepTimes_nsecs, stepEnds.length);
+        }
+        if (numSteps > 0) {
+            numSteps--;
+        }
+        int i = numSteps == 0 ? 0 : stepEnds[numSteps - 1];
+        while (i < numPoints) {
+            long stepTime_nsecs = times_nsecs[i];
+            while (i < numPoints && times_nsecs[i] - stepTime_nsecs < frameInterval_nsecs) {
+                i++;
+            }
+            stepTimes_nsecs[numSteps] = stepTime_nsecs;
+            stepEnds[numSteps] = i;
+            numSteps++;
+        }
+    }
+
+    /**
+     * Number of render steps the trajectory is revealed in (one per point unless frames have been merged).
+     */
+    public int getNumberOfRenderSteps() {
+        return stepEnds == null ? points.size() : numSteps;
+    }
+
+    /**
+     * Number of points which were merged into another point's render step instead of getting a frame of their own.
+     */
+    public int getMergedFrameCount() {
+        return points.size() - getNumberOfRenderSteps();
+    }
+
+    /**
+     * Update the paths so that they contain the first count points.
+     *
+     * @return true if the paths were changed
+     */
+    private boolean reveal(int count) {
+        int revealableCount = awaitingMorePoints ? points.size() - 1 : points.size();
+        count = Math.max(0, Math.min(count, revealableCount));
+        if (count == numPointsOnPath) {
+            return false;
+        }
+        if (count < numPointsOnPath) { //going backwards: rebuild the block being returned to, keeping those before it
+            int block = count == 0 ? 0 : findBlockOf(count - 1);
+            numBlocksOnPath = block;
+            numCompletedBlocks = Math.min(numCompletedBlocks, block);
+            numPointsOnPath = count == 0 ? 0 : blockStarts[block];
+            numCompletedStrokes = count == 0 ? 0 : Math.min(numCompletedStrokes, points.getStrokeOf(numPointsOnPath));
+        }
+        for (int i = numPointsOnPath; i < count; i++) {
+            appendPoint(i);
+        }
+        numPointsOnPath = count;
+        return true;
+    }
+
+    /**
+     * Index of the block (among those on the path) containing point i (binary search).
+     */
+    private int findBlockOf(int i) {
+        int low = 0;
+        int high = numBlocksOnPath - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockStarts[mid] <= i) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Add point i to the current block's path, smoothed in the same way as captured strokes (see StrokeSmoother).
+     */
+    private void appendPoint(int i) {
+        float[] xs = points.xArray();
+        float[] ys = points.yArray();
+        Path path;
+        boolean first = i == 0 || points.isPenUp(i);
+        if (first) {
+            path = startBlock(i);
+            StrokeSmoother.addSegment(path, xs[i], ys[i], true, false, 0, 0);
+        } else {
+            if (i - blockStarts[numBlocksOnPath - 1] == POINTS_PER_BLOCK) { //checkpoint within a stroke
+                completeBlock();
+                path = startBlock(i);
+                //repeat the previous point's curve (from where it began, midway from the point before), so that the join
+                //and corner effect at this point are drawn within one path rather than leaving a seam between two
+                path.moveTo((xs[i - 2] + xs[i - 1]) / 2, (ys[i - 2] + ys[i - 1]) / 2);
+                StrokeSmoother.addSegment(path, xs[i - 1], ys[i - 1], false, false, xs[i], ys[i]);
+            } else {
+                path = blockPaths.get(numBlocksOnPath - 1);
+            }
+            boolean last = i == points.size() - 1 || points.isPenUp(i + 1);
+            StrokeSmoother.addSegment(path, xs[i], ys[i], false, last, last ? 0 : xs[i + 1], last ? 0 : ys[i + 1]);
+        }
+        int stroke = points.getStrokeOf(i);
+        if (i == points.getStrokeEnd(stroke) - 1) {
+            //while awaiting more points the last point received is never revealed, so the last stroke can't be completed early
+            completeBlock();
+            completeStroke(stroke);
+        }
+    }
+
+    private Path startBlock(int start) {
+        Path path;
+        if (numBlocksOnPath < blockPaths.size()) {
+            path = blockPaths.get(numBlocksOnPath);
+            path.rewind();
+        } else {
+            path = new Path();
+            blockPaths.add(path);
+            blockBounds.add(new RectF());
+        }
+        if (numBlocksOnPath == blockStarts.length) {
+            blockStarts = Arrays.copyOf(blockStarts, numBlocksOnPath * 2);
+        }
+        blockStarts[numBlocksOnPath] = start;
+        numBlocksOnPath++;
+        return path;
+    }
+
+    /**
+     * Record the area covered by the last block, which won't have any more points added.
+     */
+    private void completeBlock() {
+        int block = numBlocksOnPath - 1;
+        RectF bounds = blockBounds.get(block);
+        blockPaths.get(block).computeBounds(bounds, true);
+        float margin = paint.getStrokeWidth() / 2 + 1;
+        bounds.inset(-margin, -margin);
+        numCompletedBlocks = block + 1;
+    }
+
+    private void completeStroke(int stroke) {
+        numCompletedStrokes = stroke + 1;
+        for (StrokeListener listener : new ArrayList<StrokeListener>(strokeListeners)) {
+            listener.onStrokeRevealed(this, stroke);
+        }
+    }
+
+    @Override
+    public void start() { player.start(); }
+
+    @Override
+    public void stop() { player.stop(); }
+
+    @Override
+    public boolean isRunning() { return player.isRunning(); }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (numPointsOnPath == points.size() && !awaitingMorePoints) {
+            player.onCompletedTrajectoryDrawn(System.nanoTime());
+        }
+        for (int block = 0; block < numBlocksOnPath; block++) {
+            if (block < numCompletedBlocks && canvas.quickReject(blockBounds.get(block), Canvas.EdgeType.AA)) {
+                continue; //outside the area being redrawn
+            }
+            canvas.drawPath(blockPaths.get(block), paint);
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        //ignored: the paint is shared with other trajectories of the same style
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        //ignored: the paint is shared with other trajectories of the same style
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Plays a TrajectoryDrawable in time with the display's vsync.
+ *
+ * On each frame the revealed part of the trajectory is computed from the time elapsed since the first
+ * frame of playback (rather than by accumulating per-point frame durations), so playback does not drift
+ * however long the trajectory is or however late individual frames are.
+ *
+ * The rate can be changed, and playback paused, resumed or moved to another time, while it is running.
+ * Must be started and controlled from a thread with a Looper (normally the UI thread).
+ */
+public class TrajectoryPlayer implements Choreographer.FrameCallback {
+    private static final long SCHEDULING_MARGIN_MSECS = 50; //wake up this long before a scheduled start, then wait frame by frame
+    private static final long MAX_DRAW_WAIT_NSECS = 100000000L; //finish anyway if the completed trajectory isn't drawn within this time (e.g. it isn't visible)
+
+    /**
+     * Notified on the playback thread when playback of a trajectory has started and finished.
+     */
+    public interface Listener {
+        /**
+         * @param trajectory the trajectory which started
+         * @param requestedStartTime_nsecs time at which playback was scheduled to start, or -1 if it was started
+         *                                 straight away (System.nanoTime() timebase)
+         * @param startFrameTime_nsecs time of the first frame of playback (System.nanoTime() timebase)
+         */
+        void onPlaybackStarted(TrajectoryDrawable trajectory, long requestedStartTime_nsecs, long startFrameTime_nsecs);
+
+        /**
+         * @param trajectory the trajectory which finished
+         * @param startFrameTime_nsecs time of the first frame of playback (System.nanoTime() timebase)
+         * @param endFrameTime_nsecs time the completed trajectory was first drawn (or, if it wasn't drawn, of the frame on
+         *                           which the last point was revealed) (System.nanoTime() timebase)
+         */
+        void onPlaybackFinished(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs);
+    }
+
+    /**
+     * Listener which does nothing, to be extended by those only interested in some notifications.
+     */
+    public static class SimpleListener implements Listener {
+        @Override
+        public void onPlaybackStarted(TrajectoryDrawable trajectory, long requestedStartTime_nsecs, long startFrameTime_nsecs) {
+        }
+
+        @Override
+        public void onPlaybackFinished(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs) {
+        }
+    }
+
+    private final TrajectoryDrawable trajectory;
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    private Choreographer choreographer;
+    private double rate = 1.0;
+    private long frameInterval_nsecs = -1; //time between display refreshes, to merge frames again for a slower rate (negative if unknown)
+    private long holdDuration_nsecs = -1; //time to leave the trajectory displayed after it has finished (negative displays indefinitely)
+    private boolean running = false;
+    private boolean paused = false;
+    private long requestedStartTime_nsecs = -1; //when playback was scheduled to start (-1 to start on the next frame)
+    private long startFrameTime_nsecs = -1;
+    private long endFrameTime_nsecs = -1;
+    private long completedFrameTime_nsecs = -1; //time of the frame on which the last point was revealed
+    private long completedDrawTime_nsecs = -1; //time the completed trajectory was first drawn
+    //trajectory time is anchorTrajectoryTime + (now - anchorTime) * rate, re-anchored whenever the rate changes, playback
+    //is paused or resumed, or a seek is made, so that those changes don't disturb the timing of the rest of the trajectory
+    private long anchorTime_nsecs = -1; //System.nanoTime() timebase, -1 until the first frame
+    private long anchorTrajectoryTime_nsecs = 0;
+
+    TrajectoryPlayer(TrajectoryDrawable trajectory) {
+        this.trajectory = trajectory;
+    }
+
+    public void addListener(Listener listener) { listeners.add(listener); }
+    public void removeListener(Listener listener) { listeners.remove(listener); }
+
+    /**
+     * Set how many times faster than the trajectory's own timing it should be played. Can be changed during playback.
+     * If the trajectory's points were merged for a faster rate, they are merged again for this one (see
+     * setFrameInterval_nsecs).
+     */
+    public void setRate(double rate) {
+        reanchor(System.nanoTime());
+        this.rate = rate;
+        if (frameInterval_nsecs > 0) {
+            long mergeInterval_nsecs = Math.round(frameInterval_nsecs * rate);
+            if (mergeInterval_nsecs < trajectory.getMergeInterval_nsecs()) {
+                trajectory.mergeFrames(mergeInterval_nsecs); //steps merged for the faster rate would each last several frames
+            }
+        }
+    }
+
+    public double getRate() { return rate; }
+
+    /**
+     * Set the time between refreshes of the display the trajectory is played on, so that if its points have been merged
+     * (see TrajectoryDrawable.mergeFrames) and the rate is lowered, they are merged again for the new rate.
+     */
+    public void setFrameInterval_nsecs(long frameInterval_nsecs) { this.frameInterval_nsecs = frameInterval_nsecs; }
+
+    /**
+     * Set how long the completed trajectory is displayed before being hidden (negative displays indefinitely).
+     * The finished notification is sent once this time has elapsed.
+     */
+    public void setHoldDuration_nsecs(long holdDuration_nsecs) { this.holdDuration_nsecs = holdDuration_nsecs; }
+
+    public boolean isRunning() { return running; }
+
+    public boolean isPaused() { return paused; }
+
+    /** Time at which playback was scheduled to start, or -1 if it was started straight away. */
+    public long getRequestedStartTime_nsecs() { return requestedStartTime_nsecs; }
+
+    /** Time of the first frame of playback, or -1 if playback has not started yet. */
+    public long getStartFrameTime_nsecs() { return startFrameTime_nsecs; }
+
+    /** Time the completed trajectory was first drawn, or -1 if that has not happened yet. */
+    public long getEndFrameTime_nsecs() { return endFrameTime_nsecs; }
+
+    /**
+     * Start playing the trajectory from the beginning on the next vsync.
+     */
+    public void start() {
+        startAt(-1);
+    }
+
+    /**
+     * Schedule the trajectory to start playing at the given time (System.nanoTime() timebase), without blocking.
+     * Nothing is displayed until then; the trajectory's timing is measured from the requested time, so a late
+     * first frame doesn't delay the rest of the trajectory.
+     *
+     * @param startTime_nsecs time to start at, or -1 to start on the next vsync
+     */
+    public void startAt(long startTime_nsecs) {
+        if (running) {
+            return;
+        }
+        running = true;
+        paused = false;
+        requestedStartTime_nsecs = startTime_nsecs;
+        startFrameTime_nsecs = -1;
+        endFrameTime_nsecs = -1;
+        completedFrameTime_nsecs = -1;
+        completedDrawTime_nsecs = -1;
+        anchorTime_nsecs = -1;
+        anchorTrajectoryTime_nsecs = 0;
+        trajectory.setRevealedCount(0);
+        choreographer = Choreographer.getInstance();
+        long delay_msecs = (startTime_nsecs - System.nanoTime()) / 1000000 - SCHEDULING_MARGIN_MSECS;
+        if (startTime_nsecs >= 0 && delay_msecs > 0) {
+            choreographer.postFrameCallbackDelayed(this, delay_msecs); //don't wake up for every frame while waiting
+        } else {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stop playback, leaving the trajectory as it is currently revealed.
+     */
+    public void stop() {
+        running = false;
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Freeze playback at the current point of the trajectory.
+     */
+    public void pause() {
+        if (!running || paused) {
+            return;
+        }
+        reanchor(System.nanoTime());
+        paused = true;
+        choreographer.removeFrameCallback(this);
+    }
+
+    /**
+     * Continue playback from where it was paused.
+     */
+    public void resume() {
+        if (!running || !paused) {
+            return;
+        }
+        paused = false;
+        if (anchorTime_nsecs >= 0) {
+            anchorTime_nsecs = System.nanoTime();
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    /**
+     * Jump to the given time of the trajectory (relative to its start) and continue playing from there.
+     */
+    public void seekTo(long trajectoryTime_nsecs) {
+        if (!running) {
+            return;
+        }
+        anchorTrajectoryTime_nsecs = Math.max(0, trajectoryTime_nsecs);
+        if (anchorTime_nsecs >= 0) {
+            anchorTime_nsecs = System.nanoTime();
+        }
+        if (anchorTrajectoryTime_nsecs < trajectory.getDuration_nsecs()) {
+            endFrameTime_nsecs = -1; //the end will have to be reached again
+            completedFrameTime_nsecs = -1;
+            completedDrawTime_nsecs = -1;
+        }
+        trajectory.setRevealedTime(anchorTrajectoryTime_nsecs);
+    }
+
+    /**
+     * Time of the trajectory (relative to its start) which is displayed at the given time.
+     */
+    public long getTrajectoryTime_nsecs(long time_nsecs) {
+        if (anchorTime_nsecs < 0 || paused) {
+            return anchorTrajectoryTime_nsecs;
+        }
+        return anchorTrajectoryTime_nsecs + (long) (Math.max(0, time_nsecs - anchorTime_nsecs) * rate); //frame times can be slightly before a re-anchor
+    }
+
+    private void reanchor(long time_nsecs) {
+        if (anchorTime_nsecs >= 0) {
+            anchorTrajectoryTime_nsecs = getTrajectoryTime_nsecs(time_nsecs);
+            anchorTime_nsecs = time_nsecs;
+        }
+    }
+
+    /**
+     * Called by the trajectory when it has been drawn with all its points revealed.
+     */
+    void onCompletedTrajectoryDrawn(long drawTime_nsecs) {
+        if (running && completedFrameTime_nsecs >= 0 && completedDrawTime_nsecs < 0) {
+            completedDrawTime_nsecs = drawTime_nsecs;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        advance(frameTimeNanos);
+        if (running && !paused) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Update the revealed part of the trajectory for a frame being displayed at frameTime_nsecs.
+     */
+    void advance(long frameTime_nsecs) {
+        if (!running || paused) {
+            return;
+        }
+        if (frameTime_nsecs < requestedStartTime_nsecs) {
+            return; //not time to start yet
+        }
+        if (anchorTime_nsecs < 0) {
+            anchorTime_nsecs = requestedStartTime_nsecs >= 0 ? requestedStartTime_nsecs : frameTime_nsecs;
+        }
+        if (startFrameTime_nsecs < 0) {
+            startFrameTime_nsecs = frameTime_nsecs;
+            for (Listener listener : new ArrayList<Listener>(listeners)) {
+                listener.onPlaybackStarted(trajectory, requestedStartTime_nsecs, startFrameTime_nsecs);
+            }
+        }
+        long elapsed_nsecs = getTrajectoryTime_nsecs(frameTime_nsecs);
+        long duration_nsecs = trajectory.getDuration_nsecs();
+        if (elapsed_nsecs < duration_nsecs || trajectory.isAwaitingMorePoints()) {
+            trajectory.setRevealedTime(elapsed_nsecs); //a streamed trajectory waits here for its next chunk
+            return;
+        }
+        if (completedFrameTime_nsecs < 0) {
+            completedFrameTime_nsecs = frameTime_nsecs;
+            trajectory.setRevealedCount(trajectory.getNumberOfPoints());
+        }
+        if (endFrameTime_nsecs < 0) {
+            //the end is when the last frame is actually drawn (after this frame's callbacks), so wait for that
+            if (completedDrawTime_nsecs >= 0) {
+                endFrameTime_nsecs = completedDrawTime_nsecs;
+            } else if (frameTime_nsecs - completedFrameTime_nsecs > MAX_DRAW_WAIT_NSECS) {
+                endFrameTime_nsecs = completedFrameTime_nsecs;
+            } else {
+                return;
+            }
+        }
+        if (holdDuration_nsecs >= 0) {
+            if (elapsed_nsecs < duration_nsecs + holdDuration_nsecs) {
+                return;
+            }
+            trajectory.setRevealedCount(0); //stop displaying
+        }
+        running = false;
+        for (Listener listener : new ArrayList<Listener>(listeners)) {
+            listener.onPlaybackFinished(trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+        }
+    }
+}
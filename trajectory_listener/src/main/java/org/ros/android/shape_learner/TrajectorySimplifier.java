@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import java.util.BitSet;
+
+/**
+ * Removes points from a trajectory which the display can't resolve, using the Ramer-Douglas-Peucker
+ * algorithm with a tolerance in pixels and a tolerance in time.
+ *
+ * Each stroke (run of points between pen-ups) is simplified separately, so pen-up points and the first
+ * and last point of every stroke are always kept. Kept points keep their original times, so the
+ * trajectory still starts and finishes at the same times. Once a point is removed, the ink up to it
+ * appears with the next kept point instead, so points are also kept where needed to stop that moving
+ * later by more than the time tolerance (otherwise a slow straight segment would appear all at once at
+ * its end).
+ */
+public class TrajectorySimplifier {
+
+    private TrajectorySimplifier() { }
+
+    /**
+     * @param trajectory trajectory in pixel coordinates
+     * @param tolerance_px maximum distance a removed point may be from the simplified trajectory
+     * @param tolerance_nsecs maximum time by which the ink up to a removed point may appear later (normally one
+     *                        display refresh)
+     * @return a simplified copy of the trajectory, or the trajectory itself if no points could be removed
+     */
+    public static TrajectoryBuffer simplify(TrajectoryBuffer trajectory, float tolerance_px, long tolerance_nsecs) {
+        int numPoints = trajectory.size();
+        if (numPoints < 3 || tolerance_px <= 0) {
+            return trajectory;
+        }
+        BitSet keep = new BitSet(numPoints);
+        int[] stack = new int[2 * numPoints]; //pending (start, end) ranges, to avoid recursing on long strokes
+        for (int stroke = 0; stroke < trajectory.getNumberOfStrokes(); stroke++) {
+            simplifyStroke(trajectory, trajectory.getStrokeStart(stroke), trajectory.getStrokeEnd(stroke) - 1,
+                    tolerance_px * tolerance_px, tolerance_nsecs, keep, stack);
+        }
+
+        int numKept = keep.cardinality();
+        if (numKept == numPoints) {
+            return trajectory;
+        }
+        TrajectoryBuffer simplified = new TrajectoryBuffer(numKept);
+        for (int i = keep.nextSetBit(0); i >= 0; i = keep.nextSetBit(i + 1)) {
+            simplified.add(trajectory.getX(i), trajectory.getY(i), trajectory.getTime_nsecs(i), trajectory.isPenUp(i));
+        }
+        return simplified;
+    }
+
+    /**
+     * Mark the points of the stroke from first to last (inclusive) which are needed to stay within tolerance.
+     */
+    private static void simplifyStroke(TrajectoryBuffer trajectory, int first, int last, float toleranceSquared,
+                                       long tolerance_nsecs, BitSet keep, int[] stack) {
+        keep.set(first);
+        keep.set(last);
+        float[] xs = trajectory.xArray();
+        float[] ys = trajectory.yArray();
+        long[] times_nsecs = trajectory.timeArray();
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            float maxDistanceSquared = -1;
+            int furthest = -1;
+            for (int i = start + 1; i < end; i++) {
+                float distanceSquared = distanceToSegmentSquared(xs[i], ys[i], xs[start], ys[start], xs[end], ys[end]);
+                if (distanceSquared > maxDistanceSquared) {
+                    maxDistanceSquared = distanceSquared;
+                    furthest = i;
+                }
+            }
+            if (furthest >= 0 && maxDistanceSquared <= toleranceSquared
+                    && times_nsecs[end] - times_nsecs[start + 1] > tolerance_nsecs) {
+                //close enough in space, but removing the points would delay their ink too long: split in the middle in time
+                long middleTime_nsecs = times_nsecs[start] + (times_nsecs[end] - times_nsecs[start]) / 2;
+                furthest = start + 1;
+                while (furthest < end - 1 && times_nsecs[furthest] < middleTime_nsecs) {
+                    furthest++;
+                }
+                maxDistanceSquared = Float.POSITIVE_INFINITY;
+            }
+            if (furthest >= 0 && maxDistanceSquared > toleranceSquared) {
+                keep.set(furthest);
+                stack[top++] = start;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = end;
+            }
+        }
+    }
+
+    private static float distanceToSegmentSquared(float x, float y, float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / lengthSquared));
+        }
+        float ex = x - (x0 + t * dx);
+        float ey = y - (y0 + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
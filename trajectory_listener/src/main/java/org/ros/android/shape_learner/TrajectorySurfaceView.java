@@ -0,0 +1,534 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.ros.android.shape_learner;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import org.ros.android.MessageCallable;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeMain;
+import org.ros.node.topic.Subscriber;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nav_msgs.Path;
+import std_msgs.Empty;
+
+/**
+ * Displays incoming trajectories on a surface drawn by its own render thread, as an alternative to
+ * DisplayManager which draws through the View hierarchy on the UI thread.
+ *
+ * Trajectories are played and drawn on the render thread (which has its own Looper, so each TrajectoryPlayer
+ * is driven by that thread's Choreographer), so the animation keeps a steady frame rate however busy the UI
+ * thread is with stylus input. Received messages wait in a bounded queue and are converted to drawables on a
+ * preparation thread, as in DisplayManager. It uses the same topics as DisplayManager (see DisplayTopics),
+ * including playback control and start skew, and as with DisplayManager, finished trajectories are baked into a
+ * backing bitmap and only in-progress ones are kept alive.
+ *
+ * Unlike DisplayManager, it doesn't support streamed trajectories (every path is shown as a trajectory of its
+ * own) or a memory budget (live layers are only released when they finish or the screen is cleared).
+ *
+ * The render thread is stopped when the node shuts down or the view is detached from its window, after which
+ * the view can't be used again.
+ */
+public class TrajectorySurfaceView<T> extends SurfaceView implements SurfaceHolder.Callback, NodeMain {
+    private static final java.lang.String TAG = "TrajectorySurfaceView";
+    private static final int DEFAULT_INBOUND_QUEUE_CAPACITY = 32;
+    private String topicName;
+    private String messageType;
+    private MessageCallable<Drawable, T> drawableCallable;
+    private MessageCallable<Integer, Integer> clearScreenCallable;
+    private final DisplayTopics topics = new DisplayTopics();
+    private volatile double playbackRate = 1.0; //rate at which trajectories are played (times faster than their own timing)
+    private int surfaceColor = Color.WHITE; //colour the surface is cleared to (it is behind the window, so nothing else shows through)
+    private final BoundedMessageQueue<T> inboundQueue = new BoundedMessageQueue<T>(DEFAULT_INBOUND_QUEUE_CAPACITY, BoundedMessageQueue.OverflowPolicy.DROP_OLDEST); //messages waiting to be prepared, in order of arrival
+    private Thread preparationThread; //converts messages to drawables off the subscriber and render threads
+    private final RenderThread renderThread = new RenderThread();
+
+    public TrajectorySurfaceView(Context context) {
+        super(context);
+        init();
+    }
+
+    public TrajectorySurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public TrajectorySurfaceView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        renderThread.start();
+        getHolder().addCallback(this);
+    }
+
+    public void setTopicName(String topicName) { this.topicName = topicName; }
+    public void setClearScreenTopicName(String topicName) { topics.setClearScreenTopicName(topicName); }
+    public void setFinishedShapeTopicName(String topicName) { topics.setFinishedShapeTopicName(topicName); }
+    public void setFinishedShapeTimingTopicName(String topicName) { topics.setFinishedShapeTimingTopicName(topicName); }
+    public void setClearWatchdogTopicName(String topicName) { topics.setClearWatchdogTopicName(topicName); }
+    public void setMessageType(String messageType) { this.messageType = messageType; }
+
+    /**
+     * Set the topic on which the delay between each trajectory's requested and actual start is published.
+     */
+    public void setStartSkewTopicName(String topicName) { topics.setStartSkewTopicName(topicName); }
+
+    /**
+     * Set the topic on which playback commands for the active trajectory are received (see applyPlaybackCommand).
+     */
+    public void setPlaybackControlTopicName(String topicName) { topics.setPlaybackControlTopicName(topicName); }
+
+    /**
+     * Set the function which converts messages to drawables. It is called on the preparation thread.
+     */
+    public void setMessageToDrawableCallable(MessageCallable<Drawable, T> callable) { this.drawableCallable = callable; }
+
+    /**
+     * Set which function will be called when a clear screen message is received (after clearing the surface).
+     */
+    public void setClearScreenCallable(MessageCallable<Integer, Integer> callable) { this.clearScreenCallable = callable; }
+
+    /**
+     * Set how many received messages may wait to be prepared, and what happens to new ones when that many are waiting
+     * (by default, the oldest is dropped). BLOCK holds up the thread messages are received on until there is space.
+     */
+    public void setInboundQueueCapacity(int capacity) { inboundQueue.setCapacity(capacity); }
+    public void setInboundQueuePolicy(BoundedMessageQueue.OverflowPolicy policy) { inboundQueue.setPolicy(policy); }
+
+    /**
+     * Set how two messages are combined when the inbound queue is full and its policy is MERGE_INTO_LATEST.
+     */
+    public void setMessageMerger(BoundedMessageQueue.Merger<T> merger) { inboundQueue.setMerger(merger); }
+
+    /**
+     * Set the colour the surface is cleared to (must be called before the surface is created).
+     */
+    public void setSurfaceColor(int surfaceColor) { this.surfaceColor = surfaceColor; }
+
+    /**
+     * Rate at which trajectories are played (times faster than their own timing).
+     */
+    public double getPlaybackRate() { return playbackRate; }
+
+    /**
+     * Set the rate at which the active and subsequent trajectories are played. Must be finite and greater than zero.
+     */
+    public void setPlaybackRate(final double playbackRate) {
+        this.playbackRate = playbackRate;
+        renderThread.post(new Runnable() {
+            @Override
+            public void run() {
+                renderThread.setPlaybackRate(playbackRate);
+            }
+        });
+    }
+
+    /**
+     * Control playback of the active trajectory (on the render thread). Commands are
+     * "rate &lt;r&gt;", "pause", "resume" and "seek &lt;t&gt;" (see DisplayTopics.applyPlaybackCommand).
+     */
+    public void applyPlaybackCommand(final String command) {
+        renderThread.post(new Runnable() {
+            @Override
+            public void run() {
+                DisplayTopics.applyPlaybackCommand(command, renderThread);
+            }
+        });
+    }
+
+    /**
+     * Time between refreshes of the display this view is shown on.
+     */
+    public long getFrameInterval_nsecs() {
+        return DisplayTopics.getFrameInterval_nsecs(getContext());
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        renderThread.setSurface(holder, width, height);
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        renderThread.setSurface(null, 0, 0); //waits for any frame being drawn, as the surface is invalid once this returns
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        renderThread.shutDown();
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("trajectory_surface_view");
+    }
+
+    @Override
+    public void onStart(final ConnectedNode connectedNode) {
+        Subscriber<T> subscriber = connectedNode.newSubscriber(topicName, messageType);
+        subscriber.addMessageListener(new MessageListener<T>() {
+            @Override
+            public void onNewMessage(final T message) {
+                if (drawableCallable == null) {
+                    return;
+                }
+                if (message instanceof nav_msgs.Path && ((Path) message).getPoses().size() == 0) { //prevent drawing the stop bit
+                    return;
+                }
+                try {
+                    inboundQueue.put(message);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while waiting for space in the inbound queue");
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        //convert queued messages on the preparation thread so that only showing them happens on the render thread
+        preparationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        T message;
+                        long clearGeneration;
+                        synchronized (inboundQueue) { //so that a clear can't come between taking the message and noting the generation
+                            message = inboundQueue.take();
+                            clearGeneration = inboundQueue.getClearCount();
+                        }
+                        Log.i(TAG, "Inbound queue: " + inboundQueue.size() + " waiting, " + inboundQueue.getDroppedCount() + " dropped, " + inboundQueue.getMergedCount() + " merged");
+                        Drawable drawable = drawableCallable.call(message);
+                        long startTime_nsecs = topics.getRequestedStartTime_nsecs(message);
+                        renderThread.show(drawable, message instanceof nav_msgs.Path ? ((Path) message).getHeader() : null, startTime_nsecs, clearGeneration);
+                    }
+                } catch (InterruptedException e) {
+                    //shutting down
+                }
+            }
+        }, "TrajectorySurfaceView preparation");
+        preparationThread.start();
+
+        Subscriber<Empty> clearScreenSubscriber = connectedNode.newSubscriber(topics.getClearScreenTopicName(), Empty._TYPE);
+        clearScreenSubscriber.addMessageListener(new MessageListener<Empty>() {
+            @Override
+            public void onNewMessage(final Empty message) {
+                Log.e(TAG, "Got clear screen request.");
+                //messages received before the clear aren't shown, whether still waiting or being prepared (see RenderThread.show)
+                inboundQueue.clear();
+                renderThread.clear();
+                if (clearScreenCallable != null) {
+                    clearScreenCallable.call(0); //give the opportunity for any other objects to act
+                }
+            }
+        });
+        if (topics.getPlaybackControlTopicName() != null) {
+            Subscriber<std_msgs.String> playbackControlSubscriber = connectedNode.newSubscriber(topics.getPlaybackControlTopicName(), std_msgs.String._TYPE);
+            playbackControlSubscriber.addMessageListener(new MessageListener<std_msgs.String>() {
+                @Override
+                public void onNewMessage(final std_msgs.String message) {
+                    applyPlaybackCommand(message.getData());
+                }
+            });
+        }
+        topics.start(connectedNode);
+    }
+
+    /**
+     * Publish that a trajectory has finished, and its identity and timing (see DisplayTopics.publishShapeFinished).
+     * Must be called on the render thread, from the trajectory's TrajectoryPlayer.Listener.
+     */
+    public void publishShapeFinishedMessage(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs){
+        topics.publishShapeFinished(renderThread.trajectoryHeaders.remove(trajectory), trajectory, startFrameTime_nsecs, endFrameTime_nsecs);
+    }
+
+    public void publishWatchdogClearMessage(){
+        topics.publishWatchdogClear();
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        if (preparationThread != null) {
+            preparationThread.interrupt();
+        }
+        inboundQueue.clear();
+        renderThread.shutDown();
+    }
+
+    @Override
+    public void onShutdownComplete(Node node) {
+    }
+
+    @Override
+    public void onError(Node node, Throwable throwable) {
+    }
+
+    /**
+     * Owns the layers and the surface's contents. Everything except setSurface runs on this thread.
+     * Layers invalidate themselves through this thread (as their Drawable.Callback), which draws a frame
+     * once the current batch of frame callbacks has advanced every player.
+     */
+    private class RenderThread extends HandlerThread implements Drawable.Callback, DisplayTopics.PlaybackControl {
+        private final Object surfaceLock = new Object();
+        private SurfaceHolder surfaceHolder; //null while there is no valid surface (guarded by surfaceLock)
+        private Handler handler;
+        private int width = 0;
+        private int height = 0;
+        private Drawable drawable; //most recently shown drawable
+        private final HashMap<Drawable, std_msgs.Header> trajectoryHeaders = new HashMap<Drawable, std_msgs.Header>(); //header of the message each playing trajectory came from
+        private final ArrayList<Drawable> liveLayers = new ArrayList<Drawable>(); //drawables which may still change, drawn over the flattened bitmap in order
+        private Bitmap flattenedBitmap; //finished trajectories, drawn once and then released
+        private Canvas flattenedCanvas;
+        private boolean drawPending = false;
+        private final Runnable drawFrame = new Runnable() {
+            @Override
+            public void run() {
+                drawPending = false;
+                drawFrame();
+            }
+        };
+
+        RenderThread() {
+            super("TrajectorySurfaceView render");
+        }
+
+        private synchronized Handler getHandler() {
+            if (handler == null) {
+                handler = new Handler(getLooper()); //waits for the looper to be prepared
+            }
+            return handler;
+        }
+
+        /**
+         * Use a new surface (or none); called on the UI thread.
+         */
+        void setSurface(SurfaceHolder holder, final int width, final int height) {
+            synchronized (surfaceLock) {
+                surfaceHolder = holder;
+            }
+            if (holder != null) {
+                getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        resize(width, height);
+                    }
+                });
+            }
+        }
+
+        void post(Runnable runnable) {
+            getHandler().post(runnable);
+        }
+
+        /**
+         * Remove everything displayed, then stop the thread (any messages still waiting for it are discarded).
+         */
+        void shutDown() {
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    clearLayers();
+                    quit();
+                }
+            });
+        }
+
+        @Override
+        public TrajectoryPlayer getActivePlayer() {
+            if (drawable instanceof TrajectoryDrawable && ((TrajectoryDrawable) drawable).isRunning()) {
+                return ((TrajectoryDrawable) drawable).getPlayer();
+            }
+            return null;
+        }
+
+        @Override
+        public void setPlaybackRate(double rate) {
+            playbackRate = rate;
+            TrajectoryPlayer activePlayer = getActivePlayer();
+            if (activePlayer != null) {
+                activePlayer.setRate(rate);
+            }
+        }
+
+        /**
+         * Show a prepared drawable, unless the screen has been cleared since its message was received.
+         *
+         * @param clearGeneration number of times the screen had been cleared when the message was taken from the queue
+         */
+        void show(final Drawable drawable, final std_msgs.Header header, final long startTime_nsecs, final long clearGeneration) {
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (clearGeneration != inboundQueue.getClearCount()) {
+                        Log.e(TAG, "Dropping a drawable whose message was received before the screen was cleared");
+                        return;
+                    }
+                    if (header != null) {
+                        trajectoryHeaders.put(drawable, header);
+                    }
+                    showDrawable(drawable, startTime_nsecs);
+                }
+            });
+        }
+
+        void clear() {
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    clearLayers();
+                }
+            });
+        }
+
+        private void showDrawable(Drawable drawable, long startTime_nsecs) {
+            this.drawable = drawable;
+            drawable.setBounds(0, 0, width, height);
+            drawable.setCallback(this);
+            liveLayers.add(drawable);
+            if (drawable instanceof TrajectoryDrawable) {
+                TrajectoryPlayer player = ((TrajectoryDrawable) drawable).getPlayer();
+                player.setRate(playbackRate);
+                //once finished, the trajectory no longer changes so it can be baked into the flattened layer
+                player.addListener(new TrajectoryPlayer.SimpleListener() {
+                    @Override
+                    public void onPlaybackStarted(TrajectoryDrawable trajectory, long requestedStartTime_nsecs, long startFrameTime_nsecs) {
+                        if (requestedStartTime_nsecs >= 0) {
+                            topics.publishStartSkew(startFrameTime_nsecs - requestedStartTime_nsecs);
+                        }
+                    }
+                    @Override
+                    public void onPlaybackFinished(TrajectoryDrawable trajectory, long startFrameTime_nsecs, long endFrameTime_nsecs) {
+                        flattenLayer(trajectory);
+                    }
+                });
+                player.startAt(startTime_nsecs); //uses this thread's Choreographer
+            } else if (drawable instanceof Animatable) {
+                ((Animatable) drawable).start();
+            }
+            requestDraw();
+        }
+
+        private void flattenLayer(Drawable layer) {
+            if (!liveLayers.remove(layer)) {
+                return; //already cleared
+            }
+            trajectoryHeaders.remove(layer); //if it finished, the finished message has already been published
+            layer.setCallback(null);
+            if (flattenedCanvas != null) {
+                layer.draw(flattenedCanvas);
+            }
+            requestDraw();
+        }
+
+        /**
+         * Remove everything displayed. Trajectories which are still playing finish without being drawn (see
+         * DisplayTopics.releaseClearedLayers).
+         */
+        private void clearLayers() {
+            DisplayTopics.releaseClearedLayers(liveLayers);
+            liveLayers.clear();
+            trajectoryHeaders.clear();
+            drawable = null;
+            if (flattenedBitmap != null) {
+                flattenedBitmap.eraseColor(Color.TRANSPARENT);
+            }
+            requestDraw();
+        }
+
+        private void resize(int width, int height) {
+            this.width = width;
+            this.height = height;
+            if (width > 0 && height > 0) {
+                Bitmap previous = flattenedBitmap;
+                flattenedBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                flattenedCanvas = new Canvas(flattenedBitmap);
+                if (previous != null) {
+                    flattenedCanvas.drawBitmap(previous, 0, 0, null);
+                    previous.recycle();
+                }
+            }
+            for (Drawable layer : liveLayers) {
+                layer.setBounds(0, 0, width, height);
+            }
+            requestDraw();
+        }
+
+        private void requestDraw() {
+            if (!drawPending) {
+                drawPending = true;
+                getHandler().post(drawFrame); //after any other frame callbacks have updated their layers
+            }
+        }
+
+        private void drawFrame() {
+            synchronized (surfaceLock) {
+                if (surfaceHolder == null) {
+                    return; //drawn again once there is a surface
+                }
+                Canvas canvas = surfaceHolder.lockCanvas();
+                if (canvas == null) {
+                    return;
+                }
+                try {
+                    canvas.drawColor(surfaceColor);
+                    if (flattenedBitmap != null) {
+                        canvas.drawBitmap(flattenedBitmap, 0, 0, null);
+                    }
+                    for (Drawable layer : liveLayers) {
+                        layer.draw(canvas);
+                    }
+                } finally {
+                    surfaceHolder.unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+
+        @Override
+        public void invalidateDrawable(Drawable who) {
+            requestDraw();
+        }
+
+        @Override
+        public void scheduleDrawable(Drawable who, Runnable what, long when) {
+            getHandler().postAtTime(what, when);
+        }
+
+        @Override
+        public void unscheduleDrawable(Drawable who, Runnable what) {
+            getHandler().removeCallbacks(what);
+        }
+    }
+}